@@ -8,6 +8,14 @@ import mpi.database.DataManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import de.mpii.yago.web.evaluation.pages.EvaluatePage;
+import de.mpii.yago.web.evaluation.util.AgreementAccumulator;
+import de.mpii.yago.web.evaluation.util.EvaluatedFacts;
+import de.mpii.yago.web.evaluation.util.FactPrefetcher;
+import de.mpii.yago.web.evaluation.util.GlossCache;
+import de.mpii.yago.web.evaluation.util.JudgmentJournal;
+import de.mpii.yago.web.evaluation.util.SettingsWatcher;
+import de.mpii.yago.web.evaluation.util.TargetRegistry;
 import de.mpii.yago.web.evaluation.util.YagoDatabase;
 
 public class WebInitialiser extends HttpServlet {
@@ -29,6 +37,14 @@ public class WebInitialiser extends HttpServlet {
       
       if (!DataManager.isConnected()) {
         logger.error("FAILED TO CONNECT TO DATABASE");
+      } else {
+        TargetRegistry.ensureLoaded(YagoDatabase.getInstance());
+        GlossCache.getRelationGlosses();
+        YagoDatabase.getRelationSamplers();
+        EvaluatedFacts.ensureLoaded();
+        AgreementAccumulator.ensureLoaded();
+        JudgmentJournal.open();
+        SettingsWatcher.start();
       }
     } catch (Exception e) {
       e.printStackTrace();
@@ -37,6 +53,10 @@ public class WebInitialiser extends HttpServlet {
 
   public void destroy() {
     super.destroy();
+    SettingsWatcher.shutdown();
+    FactPrefetcher.shutdown();
+    EvaluatePage.shutdownDescriptionResolver();
+    JudgmentJournal.shutdown();
     try {
       if (DataManager.isConnected()) {
         DataManager.disconnect();
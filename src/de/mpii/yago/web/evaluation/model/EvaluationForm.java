@@ -0,0 +1,51 @@
+package de.mpii.yago.web.evaluation.model;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The judgments of one submitted evaluation form: the evaluation result of
+ * each fact, by fact id, given by one user for one evaluation target.
+ */
+public class EvaluationForm {
+
+  private final Date time;
+
+  private final String target;
+
+  private final String user;
+
+  private final Map<String, String> results;
+
+  public EvaluationForm(Date time, String target, String user, Map<String, String> results) {
+    this.time = time;
+    this.target = target;
+    this.user = user;
+    this.results = Collections.unmodifiableMap(new LinkedHashMap<String, String>(results));
+  }
+
+  public Date getTime() {
+    return time;
+  }
+
+  public String getTarget() {
+    return target;
+  }
+
+  public String getUser() {
+    return user;
+  }
+
+  /**
+   * @return  Evaluation result by fact id
+   */
+  public Map<String, String> getResults() {
+    return results;
+  }
+
+  public String toString() {
+    return user + " " + target + ": " + results;
+  }
+}
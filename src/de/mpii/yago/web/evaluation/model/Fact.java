@@ -11,7 +11,7 @@ import java.util.Set;
 import org.apache.commons.lang.StringEscapeUtils;
 
 import de.mpii.yago.web.evaluation.util.FactComponent;
-import de.mpii.yago.web.evaluation.util.YagoDatabase;
+import de.mpii.yago.web.evaluation.util.GlossCache;
 import javatools.parsers.Char;
 
 public class Fact {
@@ -28,6 +28,9 @@ public class Fact {
 
   String evaluationTarget;
 
+  // id in the sorted sampling table the fact was drawn from, -1 if it was not sampled
+  int sampleId = -1;
+
   private static Set<String> keep = new HashSet<String>(
       Arrays.asList(new String[] { "<m^2>", "</km^2>", "<s>", "<m>", "<dollar>", "<euro>", "<%>", "<g>", "<degrees>" }));
 
@@ -48,7 +51,7 @@ public class Fact {
   }
 
   public String getHumanReadable() throws SQLException {
-    String sentence = YagoDatabase.getArg2(predicate, "<hasGloss>");
+    String sentence = GlossCache.getGloss(predicate);
     if (sentence == null) {
       sentence = toHumanReadableEntity(arg1) + " " + FactComponent.stripBrackets(predicate) + " " + toHumanReadableEntity(arg2);
     } else {
@@ -167,4 +170,15 @@ public class Fact {
   public void setTechnique(String technique) {
     this.technique = StringEscapeUtils.escapeHtml(technique);
   }
+
+  /**
+   * @return  The id in the sorted sampling table the fact was drawn from, -1 if it was not sampled
+   */
+  public int getSampleId() {
+    return sampleId;
+  }
+
+  public void setSampleId(int sampleId) {
+    this.sampleId = sampleId;
+  }
 }
\ No newline at end of file
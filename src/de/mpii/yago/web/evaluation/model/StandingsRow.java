@@ -0,0 +1,171 @@
+package de.mpii.yago.web.evaluation.model;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import de.mpii.yago.web.evaluation.util.Wilson;
+
+/**
+ * The standing of one evaluation target: the number of its evaluations,
+ * the correct ones and the statistics derived from them, computed once. The
+ * values are kept unformatted, percentages in the range 0 to 100.
+ */
+public class StandingsRow {
+
+  /** Property names, used as column names of the standings tables */
+  public static final String TARGET = "target";
+
+  public static final String EVALUATIONS = "evaluations";
+
+  public static final String CORRECT = "correct";
+
+  public static final String RATIO = "ratio";
+
+  public static final String WILSON_CENTER = "wilsonCenter";
+
+  public static final String WILSON_WIDTH = "wilsonWidth";
+
+  public static final String PROGRESS = "progress";
+
+  public static final Comparator<StandingsRow> BY_TARGET = new Comparator<StandingsRow>() {
+
+    @Override
+    public int compare(StandingsRow one, StandingsRow two) {
+      return one.target.compareTo(two.target);
+    }
+  };
+
+  public static final Comparator<StandingsRow> BY_EVALUATIONS = new Comparator<StandingsRow>() {
+
+    @Override
+    public int compare(StandingsRow one, StandingsRow two) {
+      return one.evaluations < two.evaluations ? -1 : one.evaluations == two.evaluations ? 0 : 1;
+    }
+  };
+
+  public static final Comparator<StandingsRow> BY_CORRECT = new Comparator<StandingsRow>() {
+
+    @Override
+    public int compare(StandingsRow one, StandingsRow two) {
+      return one.correct < two.correct ? -1 : one.correct == two.correct ? 0 : 1;
+    }
+  };
+
+  public static final Comparator<StandingsRow> BY_RATIO = new Comparator<StandingsRow>() {
+
+    @Override
+    public int compare(StandingsRow one, StandingsRow two) {
+      return Double.compare(one.ratio, two.ratio);
+    }
+  };
+
+  public static final Comparator<StandingsRow> BY_WILSON_CENTER = new Comparator<StandingsRow>() {
+
+    @Override
+    public int compare(StandingsRow one, StandingsRow two) {
+      return Double.compare(one.wilsonCenter, two.wilsonCenter);
+    }
+  };
+
+  public static final Comparator<StandingsRow> BY_WILSON_WIDTH = new Comparator<StandingsRow>() {
+
+    @Override
+    public int compare(StandingsRow one, StandingsRow two) {
+      return Double.compare(one.wilsonWidth, two.wilsonWidth);
+    }
+  };
+
+  private static final Map<String, Comparator<StandingsRow>> comparators;
+
+  static {
+    Map<String, Comparator<StandingsRow>> byProperty = new HashMap<String, Comparator<StandingsRow>>();
+    byProperty.put(TARGET, BY_TARGET);
+    byProperty.put(EVALUATIONS, BY_EVALUATIONS);
+    byProperty.put(CORRECT, BY_CORRECT);
+    byProperty.put(RATIO, BY_RATIO);
+    byProperty.put(WILSON_CENTER, BY_WILSON_CENTER);
+    byProperty.put(WILSON_WIDTH, BY_WILSON_WIDTH);
+    comparators = Collections.unmodifiableMap(byProperty);
+  }
+
+  private final String target;
+
+  private final int evaluations;
+
+  private final int correct;
+
+  private final double ratio;
+
+  private final double wilsonCenter;
+
+  private final double wilsonWidth;
+
+  private final double progress;
+
+  public StandingsRow(String target, int evaluations, int correct) {
+    this.target = target;
+    this.evaluations = evaluations;
+    this.correct = correct;
+
+    ratio = (double) correct * 100 / evaluations;
+
+    double[] wilson = Wilson.wilson(evaluations, correct);
+    wilsonCenter = wilson[0] * 100;
+    wilsonWidth = wilson[1] * 100;
+
+    progress = Wilson.progress(evaluations, correct);
+  }
+
+  /**
+   * @param property  One of the property names of this class
+   * @return  The comparator for the property, or null if the rows cannot be sorted by it
+   */
+  public static Comparator<StandingsRow> comparator(String property) {
+    return comparators.get(property);
+  }
+
+  /**
+   * @return  The relation or technique
+   */
+  public String getTarget() {
+    return target;
+  }
+
+  public int getEvaluations() {
+    return evaluations;
+  }
+
+  public int getCorrect() {
+    return correct;
+  }
+
+  /**
+   * @return  Percentage of correct evaluations
+   */
+  public double getRatio() {
+    return ratio;
+  }
+
+  /**
+   * @return  Center of the Wilson interval in percent
+   */
+  public double getWilsonCenter() {
+    return wilsonCenter;
+  }
+
+  /**
+   * @return  Width of the Wilson interval in percent
+   */
+  public double getWilsonWidth() {
+    return wilsonWidth;
+  }
+
+  /**
+   * @return  Wilson progress of the target, between 0.0 and 1.0
+   */
+  public double getProgress() {
+    return progress;
+  }
+}
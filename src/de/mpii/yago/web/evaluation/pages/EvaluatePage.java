@@ -3,12 +3,29 @@ package de.mpii.yago.web.evaluation.pages;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -22,6 +39,7 @@ import org.apache.http.StatusLine;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
@@ -29,10 +47,15 @@ import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import de.mpii.yago.web.evaluation.model.EvaluationForm;
 import de.mpii.yago.web.evaluation.model.Fact;
 import de.mpii.yago.web.evaluation.pages.WikiHelper.WikipediaEntity;
+import de.mpii.yago.web.evaluation.util.AssignmentStream;
 import de.mpii.yago.web.evaluation.util.EvaluationManager;
 import de.mpii.yago.web.evaluation.util.FactComponent;
+import de.mpii.yago.web.evaluation.util.GlossCache;
+import de.mpii.yago.web.evaluation.util.JudgmentJournal;
+import de.mpii.yago.web.evaluation.util.JsonReader;
 import de.mpii.yago.web.evaluation.util.YagoDatabase;
 import javatools.parsers.Char;
 
@@ -47,10 +70,57 @@ public class EvaluatePage extends BasePage {
 	
 	WikiHelper helper = new WikiHelper();
 	
+	/** Time in ms that a page waits for the descriptions of its entities */
+	public static final long DESCRIPTION_DEADLINE = 5000;
+
+	/** Time in ms, out of DESCRIPTION_DEADLINE, that a page waits for the batched article lookups */
+	public static final long ARTICLE_PREFETCH_DEADLINE = DESCRIPTION_DEADLINE / 2;
+
+	/** Maximum number of descriptions resolved in parallel (over all pages) */
+	public static final int DESCRIPTION_THREADS = 16;
+
+	private static ExecutorService descriptionResolver = Executors.newFixedThreadPool(DESCRIPTION_THREADS, new ThreadFactory() {
+
+		private AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "description-resolver-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/**
+	 * Resolves the description of one entity
+	 */
+	private class DescriptionTask implements Callable<String> {
+		String entity;
+		String yagoClass;
+		String relation;
+		String extractionTechnique;
+
+		DescriptionTask(String entity, String yagoClass, String relation, String extractionTechnique) {
+			this.entity = entity;
+			this.yagoClass = yagoClass;
+			this.relation = relation;
+			this.extractionTechnique = extractionTechnique;
+		}
+
+		@Override
+		public String call() throws Exception {
+			return descriptionForEntity(entity, yagoClass, relation, extractionTechnique, true);
+		}
+	}
+
+	public static void shutdownDescriptionResolver() {
+		descriptionResolver.shutdownNow();
+	}
+
 	public EvaluatePage() {
 		super();
 		try {
-			ydb = new YagoDatabase();
+			ydb = YagoDatabase.getInstance();
 		} catch (SQLException e) {
 			getLogger().error("Could not initialize DB", e);
 		}
@@ -67,7 +137,7 @@ public class EvaluatePage extends BasePage {
 
 			getLogger().info("Getting new fact to evaluate for " + username);
 
-			boolean done = EvaluationManager.getRandomFactForEvaluation(username, factsToEvaluate);
+			boolean done = EvaluationManager.getRandomFactForEvaluation(username, getAssignmentStream(), factsToEvaluate);
 
 			if (!done) {
 				Fact fact = factsToEvaluate.get(0);        
@@ -90,18 +160,62 @@ public class EvaluatePage extends BasePage {
 				allFacts.add(fact);
 				allFacts.addAll(relatedFacts);
 
+				// fetch the glosses of all entities on the page at once
+				Set<String> entities = new HashSet<String>();
 				for (Fact f : allFacts) {
-					String arg1desc = descriptionForEntity(f.getArg1(), ydb.getDomain(f.getRelation()), f.getRelation(), f.getTechnique());
+					entities.add(f.getArg1());
+					entities.add(f.getArg2());
+				}
+				GlossCache.prefetch(entities);
+
+				// resolve all descriptions in parallel, by displayed entity
+				Map<String, DescriptionTask> tasks = new LinkedHashMap<String, DescriptionTask>();
+				for (Fact f : allFacts) {
+					tasks.put(Fact.toHumanReadableEntity(f.getArg1()), new DescriptionTask(f.getArg1(), ydb.getDomain(f.getRelation()), f.getRelation(), f.getTechnique()));
+					tasks.put(Fact.toHumanReadableEntity(f.getArg2()), new DescriptionTask(f.getArg2(), ydb.getRange(f.getRelation()), f.getRelation(), f.getTechnique()));
+				}
 
-					if (arg1desc != null) {
-						entityDescriptions.put(Fact.toHumanReadableEntity(f.getArg1()), arg1desc);
+				final List<DescriptionTask> taskList = new ArrayList<DescriptionTask>(tasks.values());
+				long deadline = System.currentTimeMillis() + DESCRIPTION_DEADLINE;
+
+				// answer existence and translations of all articles in a few requests,
+				// the tasks then find them in the cache; the lookups count against the
+				// deadline, whatever they did not answer in time the tasks look up themselves
+				Future<Void> prefetch = descriptionResolver.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception {
+						prefetchArticles(taskList);
+						return null;
 					}
+				});
+				try {
+					prefetch.get(ARTICLE_PREFETCH_DEADLINE, TimeUnit.MILLISECONDS);
+				} catch (TimeoutException e) {
+					logger.info("Article lookups missed their deadline");
+					prefetch.cancel(true);
+				} catch (ExecutionException e) {
+					logger.warn("Could not look up articles", e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
 
-					String arg2desc = descriptionForEntity(f.getArg2(), ydb.getRange(f.getRelation()), f.getRelation(), f.getTechnique());
+				List<Future<String>> results;
+				try {
+					long remaining = Math.max(0, deadline - System.currentTimeMillis());
+					results = descriptionResolver.invokeAll(taskList, remaining, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					results = new ArrayList<Future<String>>();
+				}
 
-					if (arg2desc != null) {
-						entityDescriptions.put(Fact.toHumanReadableEntity(f.getArg2()), arg2desc);
+				int i = 0;
+				for (String entity : tasks.keySet()) {
+					String description = getDescription(taskList.get(i), i < results.size() ? results.get(i) : null);
+					if (description != null) {
+						entityDescriptions.put(entity, description);
 					}
+					i++;
 				}
 
 				addModel("entityDescriptions", entityDescriptions);
@@ -116,48 +230,129 @@ public class EvaluatePage extends BasePage {
 		}
 	}
 
+	/**
+	 * Looks up the Wikipedia articles of all tasks in batches, grouped by the
+	 * language of the article and the language of the infobox extractor
+	 */
+	private void prefetchArticles(List<DescriptionTask> taskList) throws SQLException {
+		Map<String, List<String>> titlesByLanguages = new LinkedHashMap<String, List<String>>();
+
+		for (DescriptionTask task : taskList) {
+			if (!isDescribedByWikipedia(task.entity, task.yagoClass)) continue;
+
+			String title = toArticleTitle(task.entity);
+			String languageCode = "en";
+			String dstLanguageCode = infoboxLanguage(task.extractionTechnique);
+
+			int idx = title.indexOf("/");
+			if (idx == 2) {
+				languageCode = title.substring(0, idx);
+				title = title.substring(idx + 1);
+				dstLanguageCode = null;
+			}
+			if (languageCode.equals(dstLanguageCode)) {
+				dstLanguageCode = null;
+			}
+
+			String key = languageCode + "\t" + (dstLanguageCode == null ? "" : dstLanguageCode);
+			List<String> titles = titlesByLanguages.get(key);
+			if (titles == null) {
+				titles = new ArrayList<String>();
+				titlesByLanguages.put(key, titles);
+			}
+			titles.add(title);
+		}
+
+		for (Map.Entry<String, List<String>> e : titlesByLanguages.entrySet()) {
+			String[] languages = e.getKey().split("\t", -1);
+			helper.lookupArticles(languages[0], e.getValue(), languages[1].isEmpty() ? null : languages[1], null);
+		}
+	}
+
+	/**
+	 * Returns the resolved description, or a description with a plain article
+	 * URL if resolving failed or missed the deadline
+	 */
+	private String getDescription(DescriptionTask task, Future<String> result) throws SQLException, IOException {
+		if (result != null && result.isDone() && !result.isCancelled()) {
+			try {
+				return result.get();
+			} catch (ExecutionException e) {
+				logger.warn("Could not resolve description for " + task.entity, e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		} else {
+			logger.info("Description for " + task.entity + " missed the deadline");
+		}
+		return descriptionForEntity(task.entity, task.yagoClass, task.relation, task.extractionTechnique, false);
+	}
+
+	/**
+	 * Returns the assignment stream of the current session, creating it if necessary
+	 */
+	private AssignmentStream getAssignmentStream() {
+		AssignmentStream stream = (AssignmentStream) getContext().getSessionAttribute(AssignmentStream.SESSION_KEY);
+
+		if (stream == null) {
+			stream = new AssignmentStream();
+			getContext().setSessionAttribute(AssignmentStream.SESSION_KEY, stream);
+		}
+
+		return stream;
+	}
+
 	public boolean onFactEvaluation() {    
 		Map<String, String[]> params = getContext().getRequest().getParameterMap();
 
 		String evaluationTarget = params.get("evaluation_target")[0];
 
+		// the whole form is stored at once
+		Map<String, String> values = new LinkedHashMap<String, String>();
 		for (String param : params.keySet()) {
 			if (!param.startsWith("fact_")) continue;
 
 			String factId = param.replace("fact_", "");
-			String value = params.get(param)[0];
-			try {
-				storeEvaluationForFact(factId, value, evaluationTarget);
-			} catch (SQLException e) {
-				getLogger().error("Could not store evaluation for Fact " + param, e);
+			values.put(factId, params.get(param)[0]);
+		}
+
+		EvaluationForm form = new EvaluationForm(new Date(), evaluationTarget, username, values);
+		try {
+			// stored in the background once it is journaled
+			if (JudgmentJournal.append(form)) {
+				return true;
 			}
+		} catch (IOException e) {
+			getLogger().error("Could not journal evaluations, storing them directly", e);
 		}
 
-		return true;
-	}
+		try {
+			ydb.storeFactEvaluations(Collections.singletonList(form));
+		} catch (SQLException e) {
+			getLogger().error("Could not store evaluations for Facts " + values.keySet(), e);
+		}
 
-	private void storeEvaluationForFact(String factId, String value, String evaluationTarget) throws SQLException {
-		ydb.storeFactEvaluation(factId, evaluationTarget, username, value);
+		return true;
 	}
 
 	/**
 	 * Returns a description of an entity. The description is either a wordnet
 	 * gloss or a snippet from the Wikipedia page
+	 * @param searchWikipedia	If false, the plain article URL is used without asking Wikipedia
 	 * @throws IOException 
 	 * @throws SQLException 
 	 * @throws Exception 
 	 */
-	private String descriptionForEntity(String entity, String yagoClass, String relation, String extractionTechnique) throws SQLException, IOException {
+	private String descriptionForEntity(String entity, String yagoClass, String relation, String extractionTechnique, boolean searchWikipedia) throws SQLException, IOException {
 		// Ignore literals/facts
 		if (ydb.isLiteral(yagoClass) || yagoClass.equals("yagoFact")) return null;
 		
-		Pattern idEntity = Pattern.compile("<id_[^_]*_[^_]*_[^_]*>");
-		if(idEntity.matcher(entity).matches()) {
+		if(ID_ENTITY.matcher(entity).matches()) {
 			return null;
 		}
 		
 		// Stuff with glosses
-		String gloss = YagoDatabase.getArg2(entity, "<hasGloss>");
+		String gloss = GlossCache.getGloss(entity);
 
 		if (gloss != null) {
 			return ("'" + Fact.toHumanReadableEntity(entity) + "' is meant in the sense of " + FactComponent.asJavaString(gloss));
@@ -171,14 +366,18 @@ public class EvaluatePage extends BasePage {
 		// economy
 
 		// it's a real entity
-		String unnormEntity = FactComponent.stripBrackets(entity.replace('_', ' '));
-		// TODO: fix this in YAGO ?
-		unnormEntity.replaceAll("(u[0-9A-Fa-f]{4})", "\\$1");
-		unnormEntity = StringEscapeUtils.unescapeJava(unnormEntity);
+		String unnormEntity = toArticleTitle(entity);
 		
 		logger.debug("entity: " + entity + " unnorm: " + unnormEntity);
 
-		String url = searchWikipediaEntity(unnormEntity, relation, extractionTechnique);
+		String url;
+		if (searchWikipedia) {
+			url = searchWikipediaEntity(unnormEntity, relation, extractionTechnique);
+		} else {
+			WikipediaEntity wikientity = helper.new WikipediaEntity();
+			wikientity.title = unnormEntity;
+			url = wikientity.getUrl();
+		}
 		StringBuilder descriptionBuilder = new StringBuilder();
 		descriptionBuilder.append("<IFRAME width='99%' height='1500px;' src='");
 		descriptionBuilder.append(url);
@@ -187,6 +386,41 @@ public class EvaluatePage extends BasePage {
 		return descriptionBuilder.toString();
 	}
 	
+	private static final Pattern ID_ENTITY = Pattern.compile("<id_[^_]*_[^_]*_[^_]*>");
+
+	private static final Pattern INFOBOX_LANGUAGE = Pattern.compile("infobox/(..)/");
+
+	/**
+	 * True if the description of the entity is a Wikipedia article, see descriptionForEntity
+	 */
+	private boolean isDescribedByWikipedia(String entity, String yagoClass) throws SQLException {
+		if (ydb.isLiteral(yagoClass) || yagoClass.equals("yagoFact")) return false;
+		if (ID_ENTITY.matcher(entity).matches()) return false;
+		if (entity.contains("wordnet_") || entity.contains("wikicategory_")) return false;
+		return GlossCache.getGloss(entity) == null;
+	}
+
+	/**
+	 * Returns the Wikipedia title of a yago entity (possibly with a language prefix)
+	 */
+	private static String toArticleTitle(String entity) {
+		String unnormEntity = FactComponent.stripBrackets(entity.replace('_', ' '));
+		// TODO: fix this in YAGO ?
+		unnormEntity.replaceAll("(u[0-9A-Fa-f]{4})", "\\$1");
+		return StringEscapeUtils.unescapeJava(unnormEntity);
+	}
+
+	/**
+	 * Returns the language of the Wikipedia the infobox extractor ran on, or null
+	 */
+	private static String infoboxLanguage(String extractionTechnique) {
+		if(extractionTechnique == null || !extractionTechnique.startsWith("&quot;InfoboxExtractor")) {
+			return null;
+		}
+		Matcher m = INFOBOX_LANGUAGE.matcher(extractionTechnique);
+		return m.find() ? m.group(1) : null;
+	}
+
 	/**
 	 * Search Wikipedia entity, corresponding to the yago entity (if possible the right revision)
 	 * @return url
@@ -216,21 +450,16 @@ public class EvaluatePage extends BasePage {
 		}
 		
 		// try with language used by infobox extractor
-		if(extractionTechnique != null &&
-				extractionTechnique.startsWith("&quot;InfoboxExtractor")) {
-			Pattern infoboxLangPattern = Pattern.compile("infobox/(..)/");
-			Matcher m = infoboxLangPattern.matcher(extractionTechnique);
-			if(m.find()) {
-				String infoboxLanguage = m.group(1);
-				System.out.println("infobox extractor language " + m.group(1));
-				if(!infoboxLanguage.equals(wikientity.languageCode)) {
-					// search translation
-					String foreignTitle = helper.getWikipediaLanguageTitle(wikientity.languageCode, infoboxLanguage, wikientity.title);
-					System.out.println("foreign title " + foreignTitle);
-					if(foreignTitle != null) {
-						wikientity.languageCode = infoboxLanguage;
-						wikientity.title = foreignTitle;
-					}
+		String infoboxLanguage = infoboxLanguage(extractionTechnique);
+		if(infoboxLanguage != null) {
+			logger.debug("infobox extractor language " + infoboxLanguage);
+			if(!infoboxLanguage.equals(wikientity.languageCode)) {
+				// search translation
+				String foreignTitle = helper.getWikipediaLanguageTitle(wikientity.languageCode, infoboxLanguage, wikientity.title);
+				logger.debug("foreign title " + foreignTitle);
+				if(foreignTitle != null) {
+					wikientity.languageCode = infoboxLanguage;
+					wikientity.title = foreignTitle;
 				}
 			}
 		}
@@ -317,10 +546,13 @@ class WikiHelper {
 	// maps language to date version code
 	public Map<String, String> languageDatestrMap = new HashMap<String, String>();
 	
-	CloseableHttpClient httpclient;
+	private static CloseableHttpClient sharedHttpclient;
+	
+	CloseableHttpClient httpclient = getHttpClient();
+	
+	WikiCache cache = WikiCache.getInstance();
 	
 	public WikiHelper() {
-		wikiRevisionIdPattern = Pattern.compile("\"revid\":([^,]*),");
 		languageDatestrMap.put("en", "20140627000000");
 		languageDatestrMap.put("de", "20130423000000");
 		languageDatestrMap.put("fr", "20140315000000");
@@ -332,21 +564,98 @@ class WikiHelper {
 		languageDatestrMap.put("ar", "20140323000000");
 		languageDatestrMap.put("fa", "20140319000000");
 		
-		PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager();
-		cm.setMaxTotal(200);
-		cm.setDefaultMaxPerRoute(20);
-		
-		httpclient = HttpClients.custom()
-				.setConnectionManager(cm)
-				.build();
+	}
+
+	/** Timeouts in ms for requests to Wikipedia */
+	static final int CONNECT_TIMEOUT = 2000;
+	static final int SOCKET_TIMEOUT = 3000;
+	static final int CONNECTION_REQUEST_TIMEOUT = 1000;
+
+	/**
+	 * The client is shared by all helpers, it is thread-safe and pools its connections
+	 */
+	static synchronized CloseableHttpClient getHttpClient() {
+		if(sharedHttpclient == null) {
+			PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager();
+			cm.setMaxTotal(200);
+			cm.setDefaultMaxPerRoute(20);
+			
+			RequestConfig config = RequestConfig.custom()
+					.setConnectTimeout(CONNECT_TIMEOUT)
+					.setSocketTimeout(SOCKET_TIMEOUT)
+					.setConnectionRequestTimeout(CONNECTION_REQUEST_TIMEOUT)
+					.build();
+			
+			sharedHttpclient = HttpClients.custom()
+					.setConnectionManager(cm)
+					.setDefaultRequestConfig(config)
+					.build();
+		}
+		return sharedHttpclient;
+	}
+
+	/** Maximum number of titles per API request (the limit for anonymous clients) */
+	static final int MAX_TITLES_PER_REQUEST = 50;
+
+	/**
+	 * Result of an article lookup
+	 */
+	public class WikipediaPage {
+		boolean exists = false;
+		String languageTitle = null;
+		String revisionId = null;
+	}
+
+	/**
+	 * Parses a response body as it is streamed from the server
+	 */
+	interface ContentParser<T> {
+		T parse(Reader content) throws IOException;
+	}
+
+	/**
+	 * Normalizations, redirects, existing pages and interlanguage titles of one query response
+	 */
+	static class QueryResult {
+		Map<String, String> normalized = new HashMap<String, String>();
+		Map<String, String> redirects = new HashMap<String, String>();
+		Set<String> existing = new HashSet<String>();
+		Map<String, String> languageTitles = new HashMap<String, String>();
+		Map<String, String> continueParams = new LinkedHashMap<String, String>();
 		
+		/**
+		 * Returns the title of the page that is shown for a requested title
+		 */
+		String resolve(String title) {
+			String resolved = normalized.containsKey(title) ? normalized.get(title) : title;
+			return redirects.containsKey(resolved) ? redirects.get(resolved) : resolved;
+		}
 	}
 
 	public String doHttpGet(String url) {
+		return doHttpGet(url, new ContentParser<String>() {
+			@Override
+			public String parse(Reader content) throws IOException {
+				StringBuilder sb = new StringBuilder();
+				char[] buffer = new char[4096];
+				int read;
+				while((read = content.read(buffer)) != -1) {
+					sb.append(buffer, 0, read);
+				}
+				return sb.toString();
+			}
+		});
+	}
+
+	/**
+	 * Executes a GET request and parses the response while it is read
+	 * @return	The parsed response, or null if the request failed
+	 */
+	public <T> T doHttpGet(String url, final ContentParser<T> parser) {
 		HttpGet httpget = new HttpGet(url);
-		ResponseHandler<String> handler = new ResponseHandler<String>() {
+		ResponseHandler<T> handler = new ResponseHandler<T>() {
 			@Override
-			public String handleResponse(HttpResponse response) throws ClientProtocolException, IOException {
+			public T handleResponse(HttpResponse response) throws ClientProtocolException, IOException {
 				StatusLine statusLine = response.getStatusLine();
 				HttpEntity entity = response.getEntity();
 				if(statusLine.getStatusCode() >= 300) {
@@ -355,98 +664,347 @@ class WikiHelper {
 				if(entity == null) {
 					throw new ClientProtocolException("Response contains no content");
 				}
-				BufferedReader reader = new BufferedReader(new InputStreamReader(entity.getContent()));
-				
-				return reader.readLine();
+				Reader reader = new BufferedReader(new InputStreamReader(entity.getContent(), "UTF-8"));
+				try {
+					return parser.parse(reader);
+				} finally {
+					reader.close();
+				}
 			}
 		};
 		
-		String responseStr = null;
+		T response = null;
 		try {
-			responseStr = httpclient.execute(httpget, handler);
+			response = httpclient.execute(httpget, handler);
 		} catch (HttpResponseException e) {
 			logger.warn("url " + url);
 			e.printStackTrace();
 		} catch (ClientProtocolException e) {
 			e.printStackTrace();
 		} catch (IOException e) {
-			e.printStackTrace();
+			logger.warn("Request failed: " + url + ": " + e);
 		}
-		return responseStr;
+		return response;
 	}
 
-	Pattern wikiRevisionIdPattern;
 	/**
 	 * Return revision id for article
 	 */
 	public String getWikipediaRevisionId(String languageCode, String entity, String datestr) {
+		String key = WikiCache.key("revid", languageCode, entity, datestr);
+		WikiCache.CachedValue cached = cache.get(key);
+		if(cached != null) {
+			return cached.value;
+		}
+
+		// rvstart is only allowed for a single title, so revisions are looked up one by one
 		StringBuilder urlbuilder = new StringBuilder();
 		urlbuilder.append("http://");
 		urlbuilder.append(languageCode);
 		urlbuilder.append(".wikipedia.org/w/api.php?");
-		urlbuilder.append("action=query&prop=revisions&rvlimit=1&redirects&format=json&continue=");
+		urlbuilder.append("action=query&prop=revisions&rvlimit=1&rvprop=ids&redirects&format=json&continue=");
 		urlbuilder.append("&titles=");
 		urlbuilder.append(Char.encodePercentage(entity));
 		urlbuilder.append("&rvstart=");
 		urlbuilder.append(datestr);
 		
-		String responseStr = doHttpGet(urlbuilder.toString());
-		if(responseStr == null) {
-			return null;
-		}
-
-		Matcher m = wikiRevisionIdPattern.matcher(responseStr);
-		if(m.find()) {
-			return m.group(1);
+		String[] revisionId = doHttpGet(urlbuilder.toString(), new ContentParser<String[]>() {
+			@Override
+			public String[] parse(Reader content) throws IOException {
+				// pages -> page id -> revisions -> [ { revid } ]
+				String[] result = new String[1];
+				JsonReader reader = new JsonReader(content);
+				reader.beginObject();
+				while(reader.hasNext()) {
+					if(!reader.nextName().equals("query")) {
+						reader.skipValue();
+						continue;
+					}
+					reader.beginObject();
+					while(reader.hasNext()) {
+						if(!reader.nextName().equals("pages")) {
+							reader.skipValue();
+							continue;
+						}
+						reader.beginObject();
+						while(reader.hasNext()) {
+							reader.nextName();
+							reader.beginObject();
+							while(reader.hasNext()) {
+								if(!reader.nextName().equals("revisions")) {
+									reader.skipValue();
+									continue;
+								}
+								reader.beginArray();
+								while(reader.hasNext()) {
+									reader.beginObject();
+									while(reader.hasNext()) {
+										if(reader.nextName().equals("revid") && result[0] == null) {
+											result[0] = reader.nextString();
+										} else {
+											reader.skipValue();
+										}
+									}
+									reader.endObject();
+								}
+								reader.endArray();
+							}
+							reader.endObject();
+						}
+						reader.endObject();
+					}
+					reader.endObject();
+				}
+				reader.endObject();
+				return result;
+			}
+		});
+		if(revisionId == null) {
+			return null; // failed request, not a miss
 		}
 
-		return null;
+		cache.put(key, revisionId[0]);
+		return revisionId[0];
 	}
 	
 	public String getWikipediaLanguageTitle(String srcLanguageCode, String dstLanguageCode, String entity) {
 		if(srcLanguageCode == null || dstLanguageCode == null || entity == null) return null;
-		StringBuilder urlbuilder = new StringBuilder();
-		urlbuilder.append("http://");
-		urlbuilder.append(srcLanguageCode);
-		urlbuilder.append(".wikipedia.org/w/api.php?");
-		urlbuilder.append("action=query&prop=langlinks&redirects&format=json&continue=");
-		urlbuilder.append("&titles=");
-		urlbuilder.append(Char.encodePercentage(entity));
-		urlbuilder.append("&lllang=");
-		urlbuilder.append(dstLanguageCode);
+		WikipediaPage page = lookupArticles(srcLanguageCode, Collections.singletonList(entity), dstLanguageCode, null).get(entity);
+		return page == null ? null : page.languageTitle;
+	}
+	
+	public boolean checkIfArticleExists(String languageCode, String entity) {
+		WikipediaPage page = lookupArticles(languageCode, Collections.singletonList(entity), null, null).get(entity);
+		return page != null && page.exists;
+	}
+
+	/**
+	 * Looks up many articles at once: whether they exist (following redirects),
+	 * their title in another language and their revision at a date. Existence and
+	 * titles are fetched with up to MAX_TITLES_PER_REQUEST titles per request,
+	 * revisions one by one for the existing articles. All results are cached, so
+	 * the single-title methods answer them without a request afterwards.
+	 * 
+	 * @param dstLanguageCode	Language of the interlanguage titles, or null
+	 * @param datestr	Date of the revisions, or null
+	 * @return	Result per requested title; titles whose request failed are missing
+	 */
+	public Map<String, WikipediaPage> lookupArticles(String languageCode, Collection<String> titles, String dstLanguageCode, String datestr) {
+		Map<String, WikipediaPage> pages = new LinkedHashMap<String, WikipediaPage>();
+		List<String> uncached = new ArrayList<String>();
 		
-		System.out.println(urlbuilder.toString());
-		String responseStr = doHttpGet(urlbuilder.toString());
-		if(responseStr == null) {
-			return null;
+		for(String title : new LinkedHashSet<String>(titles)) {
+			WikiCache.CachedValue exists = cache.get(WikiCache.key("exists", languageCode, title, null));
+			WikiCache.CachedValue languageTitle = dstLanguageCode == null ? null : cache.get(WikiCache.key("langlink", languageCode, title, dstLanguageCode));
+			if(exists == null || (dstLanguageCode != null && languageTitle == null)) {
+				uncached.add(title);
+				continue;
+			}
+			WikipediaPage page = new WikipediaPage();
+			page.exists = exists.value != null;
+			page.languageTitle = languageTitle == null ? null : languageTitle.value;
+			pages.put(title, page);
 		}
 		
-		Pattern languagePattern = Pattern.compile("\"lang\":\"" + dstLanguageCode + "\",\"\\*\":\"([^\"]*)\"");
-		Matcher m = languagePattern.matcher(responseStr);
-		if(m.find()) {
-			return StringEscapeUtils.unescapeJava(m.group(1));
+		for(int from = 0; from < uncached.size(); from += MAX_TITLES_PER_REQUEST) {
+			List<String> chunk = uncached.subList(from, Math.min(from + MAX_TITLES_PER_REQUEST, uncached.size()));
+			QueryResult result = queryArticles(languageCode, chunk, dstLanguageCode);
+			if(result == null) {
+				continue; // failed request, nothing is cached
+			}
+			
+			for(String title : chunk) {
+				String resolved = result.resolve(title);
+				WikipediaPage page = new WikipediaPage();
+				page.exists = result.existing.contains(resolved);
+				cache.put(WikiCache.key("exists", languageCode, title, null), page.exists ? "true" : null);
+				if(dstLanguageCode != null) {
+					page.languageTitle = result.languageTitles.get(resolved);
+					cache.put(WikiCache.key("langlink", languageCode, title, dstLanguageCode), page.languageTitle);
+				}
+				pages.put(title, page);
+			}
 		}
 		
-		return null;
+		if(datestr != null) {
+			for(Map.Entry<String, WikipediaPage> e : pages.entrySet()) {
+				if(e.getValue().exists) {
+					e.getValue().revisionId = getWikipediaRevisionId(languageCode, e.getKey(), datestr);
+				}
+			}
+		}
+		
+		return pages;
 	}
-	
-//	Pattern wikiArticleMissingPattern = Pattern.compile("pages:\":\\{\"-1\"");
-	Pattern wikiArticleMissingPattern = Pattern.compile("pages\"\\:\\{\"-1\"");
-	public boolean checkIfArticleExists(String languageCode, String entity) {
+
+	/**
+	 * Queries existence and interlanguage titles of at most MAX_TITLES_PER_REQUEST
+	 * titles, following continuations
+	 * @return	The merged result, or null if a request failed
+	 */
+	private QueryResult queryArticles(String languageCode, List<String> titles, String dstLanguageCode) {
 		StringBuilder urlbuilder = new StringBuilder();
 		urlbuilder.append("http://");
 		urlbuilder.append(languageCode);
 		urlbuilder.append(".wikipedia.org/w/api.php?");
-		urlbuilder.append("action=query&format=json&continue=");
+		urlbuilder.append("action=query&redirects&format=json");
+		if(dstLanguageCode != null) {
+			urlbuilder.append("&prop=langlinks&lllimit=max&lllang=");
+			urlbuilder.append(dstLanguageCode);
+		}
 		urlbuilder.append("&titles=");
-		urlbuilder.append(Char.encodePercentage(entity));
+		for(int i = 0; i < titles.size(); i++) {
+			if(i > 0) {
+				urlbuilder.append("%7C");
+			}
+			urlbuilder.append(Char.encodePercentage(titles.get(i)));
+		}
+		String baseUrl = urlbuilder.toString();
+		
+		final QueryResult result = new QueryResult();
+		ContentParser<Boolean> parser = new ContentParser<Boolean>() {
+			@Override
+			public Boolean parse(Reader content) throws IOException {
+				parseQueryResponse(new JsonReader(content), result);
+				return true;
+			}
+		};
+		
+		String url = baseUrl + "&continue=";
+		while(true) {
+			result.continueParams.clear();
+			if(doHttpGet(url, parser) == null) {
+				return null;
+			}
+			if(result.continueParams.isEmpty()) {
+				return result;
+			}
+			StringBuilder continuation = new StringBuilder(baseUrl);
+			for(Map.Entry<String, String> e : result.continueParams.entrySet()) {
+				continuation.append('&');
+				continuation.append(e.getKey());
+				continuation.append('=');
+				continuation.append(Char.encodePercentage(e.getValue()));
+			}
+			url = continuation.toString();
+		}
+	}
+	
+	/**
+	 * Reads a response of action=query into the result, see
+	 * https://www.mediawiki.org/wiki/API:Query
+	 */
+	private void parseQueryResponse(JsonReader reader, QueryResult result) throws IOException {
+		reader.beginObject();
+		while(reader.hasNext()) {
+			String name = reader.nextName();
+			if(name.equals("continue")) {
+				reader.beginObject();
+				while(reader.hasNext()) {
+					String param = reader.nextName();
+					result.continueParams.put(param, reader.nextString());
+				}
+				reader.endObject();
+			} else if(name.equals("query")) {
+				reader.beginObject();
+				while(reader.hasNext()) {
+					String part = reader.nextName();
+					if(part.equals("normalized")) {
+						parseTitleMapping(reader, result.normalized);
+					} else if(part.equals("redirects")) {
+						parseTitleMapping(reader, result.redirects);
+					} else if(part.equals("pages")) {
+						reader.beginObject();
+						while(reader.hasNext()) {
+							reader.nextName(); // page id, negative for missing pages
+							parsePage(reader, result);
+						}
+						reader.endObject();
+					} else {
+						reader.skipValue();
+					}
+				}
+				reader.endObject();
+			} else if(name.equals("error")) {
+				throw new IOException("Wikipedia API error");
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+	}
+
+	/**
+	 * Reads [ { "from": ..., "to": ... }, ... ]
+	 */
+	private void parseTitleMapping(JsonReader reader, Map<String, String> mapping) throws IOException {
+		reader.beginArray();
+		while(reader.hasNext()) {
+			String from = null;
+			String to = null;
+			reader.beginObject();
+			while(reader.hasNext()) {
+				String name = reader.nextName();
+				if(name.equals("from")) {
+					from = reader.nextString();
+				} else if(name.equals("to")) {
+					to = reader.nextString();
+				} else {
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+			if(from != null && to != null) {
+				mapping.put(from, to);
+			}
+		}
+		reader.endArray();
+	}
+
+	/**
+	 * Reads { "title": ..., "missing": "", "langlinks": [ { "lang": ..., "*": ... } ] }
+	 */
+	private void parsePage(JsonReader reader, QueryResult result) throws IOException {
+		String title = null;
+		boolean exists = true;
+		String languageTitle = null;
 		
-		String responseStr = doHttpGet(urlbuilder.toString());
-		if(responseStr == null) {
-			return false;
+		reader.beginObject();
+		while(reader.hasNext()) {
+			String name = reader.nextName();
+			if(name.equals("title")) {
+				title = reader.nextString();
+			} else if(name.equals("missing") || name.equals("invalid")) {
+				exists = false;
+				reader.skipValue();
+			} else if(name.equals("langlinks")) {
+				reader.beginArray();
+				while(reader.hasNext()) {
+					reader.beginObject();
+					while(reader.hasNext()) {
+						if(reader.nextName().equals("*")) {
+							languageTitle = reader.nextString();
+						} else {
+							reader.skipValue();
+						}
+					}
+					reader.endObject();
+				}
+				reader.endArray();
+			} else {
+				reader.skipValue();
+			}
 		}
+		reader.endObject();
 		
-		Matcher m = wikiArticleMissingPattern.matcher(responseStr);
-		return !m.find(0);
+		if(title == null) {
+			return;
+		}
+		if(exists) {
+			result.existing.add(title);
+		}
+		if(languageTitle != null) {
+			result.languageTitles.put(title, languageTitle);
+		}
 	}
 }
@@ -2,13 +2,14 @@ package de.mpii.yago.web.evaluation.pages;
 
 import java.io.IOException;
 import java.sql.SQLException;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import javax.servlet.http.HttpServletResponse;
+
 import org.apache.click.Context;
 import org.apache.click.control.Column;
 import org.apache.click.control.Decorator;
@@ -17,7 +18,8 @@ import org.apache.click.dataprovider.DataProvider;
 import org.apache.click.util.Bindable;
 
 import de.mpii.yago.web.evaluation.model.EvaluationEntry;
-import de.mpii.yago.web.evaluation.util.Wilson;
+import de.mpii.yago.web.evaluation.model.StandingsRow;
+import de.mpii.yago.web.evaluation.util.StandingsSnapshot;
 import de.mpii.yago.web.evaluation.util.YagoDatabase;
 
 public class StandingsPage extends BasePage {
@@ -31,218 +33,225 @@ public class StandingsPage extends BasePage {
   @Bindable
   protected Table usersTable = new Table();
 
-  private YagoDatabase ydb;
+  @Bindable
+  protected Table pairsTable = new Table();
 
-  List<EvaluationEntry> entries;
+  // all data of the page, set in onSecurityCheck
+  private StandingsSnapshot snapshot;
 
   public StandingsPage() {
     super();
 
-    try {
-      ydb = new YagoDatabase();
-      entries = ydb.getEvaluationEntriesFromDB();
-    } catch (SQLException e) {
-      getLogger().error("Could not initialize DB", e);
-    } catch (IOException e) {
-      getLogger().error("Could not initialize DB", e);
-    }
-
     addModel("title", "YAGO3 Evaluation - Current Standings");
 
-    relationsTable.setClass(Table.CLASS_ITS);
-    relationsTable.setSortable(true);
-
-    relationsTable.addColumn(new Column("Evaluation Target"));
-    relationsTable.addColumn(new Column("Evaluations"));
-    relationsTable.addColumn(new Column("Correct"));
-    relationsTable.addColumn(new Column("Ratio (%)"));
-    relationsTable.addColumn(new Column("Wilson Center (%)"));
-    relationsTable.addColumn(new Column("Wilson Width (%)"));
-    Column progress = new Column("Progress");
-    progress.setDecorator(new ProgressDecorator());
-    progress.setSortable(false);
-    relationsTable.addColumn(progress);
-
+    addStandingsColumns(relationsTable);
     relationsTable.setDataProvider(new StandingsProvider(relationsTable, EvaluationEntry.EVAL_TARGET_RELATION));
     relationsTable.setSorted(true);
 
-    techniquesTable.setClass(Table.CLASS_ITS);
-    techniquesTable.setSortable(true);
-
-    techniquesTable.addColumn(new Column("Evaluation Target"));
-    techniquesTable.addColumn(new Column("Evaluations"));
-    techniquesTable.addColumn(new Column("Correct"));
-    techniquesTable.addColumn(new Column("Ratio (%)"));
-    techniquesTable.addColumn(new Column("Wilson Center (%)"));
-    techniquesTable.addColumn(new Column("Wilson Width (%)"));
-    Column progress_tech = new Column("Progress");
-    progress_tech.setDecorator(new ProgressDecorator());
-    progress_tech.setSortable(false);
-    techniquesTable.addColumn(progress_tech);
-
+    addStandingsColumns(techniquesTable);
     techniquesTable.setDataProvider(new StandingsProvider(relationsTable, EvaluationEntry.EVAL_TARGET_TECHNIQUE));
 
     usersTable.setClass(Table.CLASS_ITS);
     usersTable.addColumn(new Column("User"));
     usersTable.addColumn(new Column("Count"));
+    Column correct = new Column("Correct", "Correct (%)");
+    correct.setDecorator(new NumberDecorator(correct));
+    usersTable.addColumn(correct);
+    Column agreement = new Column("Agreement", "Agreement (%)");
+    agreement.setDecorator(new NumberDecorator(agreement));
+    usersTable.addColumn(agreement);
 
-    usersTable.setDataProvider(new DataProvider<Map<String, String>>() {
+    usersTable.setDataProvider(new DataProvider<Map<String, Object>>() {
 
       private static final long serialVersionUID = -2146381601361700283L;
 
       @Override
-      public Iterable<Map<String, String>> getData() {
-        Iterable<Map<String, String>> userEvaluations = null;
-
-        try {
-          userEvaluations = ydb.getUserEvaluationNumbers();
-        } catch (SQLException e) {
-          getLogger().error("Could not get user standings", e);
+      public Iterable<Map<String, Object>> getData() {
+        if (snapshot == null) {
+          return Collections.emptyList();
         }
+        // tables may sort their rows, the snapshot is shared
+        return new ArrayList<Map<String, Object>>(snapshot.getUserEvaluations());
+      }
+    });
+
+    pairsTable.setClass(Table.CLASS_ITS);
+    pairsTable.addColumn(new Column("Users"));
+    pairsTable.addColumn(new Column("Facts"));
+    Column pairAgreement = new Column("Agreement", "Agreement (%)");
+    pairAgreement.setDecorator(new NumberDecorator(pairAgreement));
+    pairsTable.addColumn(pairAgreement);
+
+    pairsTable.setDataProvider(new DataProvider<Map<String, Object>>() {
 
-        return userEvaluations;
+      private static final long serialVersionUID = 4731146950226376405L;
+
+      @Override
+      public Iterable<Map<String, Object>> getData() {
+        if (snapshot == null) {
+          return Collections.emptyList();
+        }
+        return new ArrayList<Map<String, Object>>(snapshot.getPairAgreements());
       }
     });
   }
 
-  @Override
-  public void onRender() {
-    super.onRender();
-
-    double[] agreementAndKappa = { 0.0, 0.0 };
-    double[] totalDoubleFactsAndProgress = { 0.0, 0.0 };
-    double[] averageWilson = getAverageWilson();
-    int numberEval = getNumberEval();
-    double correctFraction = getCorrectFraction();
+  /**
+   * Adds the columns of a standings table, numbers are formatted when rendered
+   */
+  private void addStandingsColumns(Table table) {
+    table.setClass(Table.CLASS_ITS);
+    table.setSortable(true);
+
+    table.addColumn(new Column(StandingsRow.TARGET, YagoDatabase.EVAL_TARGET));
+    table.addColumn(new Column(StandingsRow.EVALUATIONS, YagoDatabase.EVALS));
+    table.addColumn(new Column(StandingsRow.CORRECT, YagoDatabase.CORRECT));
+    for (String[] column : new String[][] { { StandingsRow.RATIO, YagoDatabase.RATIO }, { StandingsRow.WILSON_CENTER, YagoDatabase.WILSON_CENTER },
+        { StandingsRow.WILSON_WIDTH, YagoDatabase.WILSON_WIDTH } }) {
+      Column number = new Column(column[0], column[1]);
+      number.setDecorator(new NumberDecorator(number));
+      table.addColumn(number);
+    }
+    Column progress = new Column(StandingsRow.PROGRESS, YagoDatabase.PROGRESS);
+    progress.setDecorator(new ProgressDecorator());
+    progress.setSortable(false);
+    table.addColumn(progress);
+  }
 
+  /**
+   * Answers conditional requests for an unchanged snapshot with 304 Not
+   * Modified, without rendering the page
+   */
+  @Override
+  public boolean onSecurityCheck() {
     try {
-      agreementAndKappa = ydb.getAgreementAndKappa();
-      totalDoubleFactsAndProgress = ydb.getTwiceEvaluatedFactsTotalAndProgress();
+      snapshot = StandingsSnapshot.get();
     } catch (SQLException e) {
-      getLogger().error("Could not get Kappa", e);
+      getLogger().error("Could not get standings", e);
+      return true;
+    } catch (IOException e) {
+      getLogger().error("Could not get standings", e);
+      return true;
     }
 
-    addModel("correctFraction", nf.format(correctFraction));
-    addModel("agreement", nf.format(agreementAndKappa[0]));
-    addModel("kappa", nf.format(agreementAndKappa[1]));
-    addModel("totalDouble", nf.format(totalDoubleFactsAndProgress[0]));
-    addModel("progress", totalDoubleFactsAndProgress[1]);
-    addModel("avgWilsonCenter", nf.format(averageWilson[0]));
-    addModel("avgWilsonWidth", nf.format(averageWilson[1]));
-    addModel("numberEval", numberEval);
-  }
+    String etag = snapshot.getETag();
+    HttpServletResponse response = getContext().getResponse();
+    response.setHeader("ETag", etag);
+    // browsers have to revalidate, which is cheap
+    response.setHeader("Cache-Control", "no-cache");
 
-  private double getCorrectFraction() {
-    int totalEvaluations = getNumberEval();
-    int correct = 0;
-
-    for (EvaluationEntry e : entries) {
-      if (e.isCorrect()) {
-        correct++;
-      }
+    if (matches(getContext().getRequest().getHeader("If-None-Match"), etag)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      setPath(null);
+      return false;
     }
 
-    return (double) correct * 100 / totalEvaluations;
+    return true;
   }
 
-  private double[] getAverageWilson() {
-    double totalCenter = 0.0;
-    double totalWidth = 0.0;
-
-    int totalNumber = 0;
-
-    List<Map<String, String>> poolStanding = ydb.groupEntriesByEvaluationTarget(entries, "relation");
-
-    for (Map<String, String> relationStanding : poolStanding) {
-      int number = Integer.parseInt(relationStanding.get("Evaluations"));
+  /**
+   * @return  true if the If-None-Match header lists the entity tag, weak or
+   *          not, or is "*"
+   */
+  private static boolean matches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
 
-      double center = Double.parseDouble(relationStanding.get("Wilson Center (%)"));
-      double width = Double.parseDouble(relationStanding.get("Wilson Width (%)"));
+    for (String tag : ifNoneMatch.split(",")) {
+      tag = tag.trim();
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      if (tag.equals("*") || tag.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
 
-      totalCenter += center * number;
-      totalWidth += width * number;
+  @Override
+  public void onRender() {
+    super.onRender();
 
-      totalNumber += number;
+    addModel("available", snapshot != null);
+    if (snapshot == null) {
+      return;
     }
 
-    double averageCenter = totalCenter / totalNumber;
-    double averageWidth = totalWidth / totalNumber;
-
-    return new double[] { averageCenter, averageWidth };
-  }
+    double[] agreementAndKappa = snapshot.getAgreementAndKappa();
+    double[] totalDoubleFactsAndProgress = snapshot.getTotalDoubleFactsAndProgress();
+    double[] averageWilson = snapshot.getAverageWilson();
+    int numberEval = snapshot.getNumberEval();
+    double correctFraction = snapshot.getCorrectFraction();
 
-  private int getNumberEval() {
-    return entries.size();
+    addModel("correctFraction", nf.format(correctFraction));
+    addModel("agreement", nf.format(agreementAndKappa[0]));
+    addModel("kappa", nf.format(agreementAndKappa[1]));
+    addModel("totalDouble", nf.format(totalDoubleFactsAndProgress[0]));
+    addModel("progress", totalDoubleFactsAndProgress[1]);
+    addModel("avgWilsonCenter", nf.format(averageWilson[0]));
+    addModel("avgWilsonWidth", nf.format(averageWilson[1]));
+    addModel("numberEval", numberEval);
   }
 
-  class StandingsProvider implements DataProvider<Map<String, String>> {
+  class StandingsProvider implements DataProvider<StandingsRow> {
 
     Table table;
 
-    List<Map<String, String>> poolStanding;
+    String evaluationTarget;
 
     public StandingsProvider(Table table, String evalulationTarget) {
       this.table = table;
-      poolStanding = ydb.groupEntriesByEvaluationTarget(entries, evalulationTarget);
+      this.evaluationTarget = evalulationTarget;
     }
 
     @Override
-    public Iterable<Map<String, String>> getData() {
-      Collections.sort(poolStanding, new Comparator<Map<String, String>>() {
-
-        List<String> numericColumns = Arrays.asList("Evaluations", "Correct", "Ratio (%)", "Wilson Center (%)", "Wilson Width (%)");
-
-        String sortKey = table.getSortedColumn();
+    public Iterable<StandingsRow> getData() {
+      if (snapshot == null) {
+        return Collections.emptyList();
+      }
 
-        boolean sortAscending = table.isSortedAscending();
+      String sortKey = table.getSortedColumn();
+      boolean sortAscending = table.isSortedAscending();
 
-        {
-          // default sorting
-          if (sortKey == null) {
-            sortKey = "Wilson Center (%)";
-            sortAscending = false;
-          }
-        }
+      Comparator<StandingsRow> order = sortKey == null ? null : StandingsRow.comparator(sortKey);
+      if (order == null) {
+        // default sorting
+        order = StandingsRow.BY_WILSON_CENTER;
+        sortAscending = false;
+      }
+      if (!sortAscending) {
+        order = Collections.reverseOrder(order);
+      }
 
-        @Override
-        public int compare(Map<String, String> one, Map<String, String> two) {
-          // check arguments
-          if (one == null || two == null) return 0;
-          if (!(one instanceof HashMap<?, ?>)) return 0;
-          if (!(two instanceof HashMap<?, ?>)) return 0;
-
-          String val1 = ((HashMap<String, String>) one).get(sortKey);
-          String val2 = ((HashMap<String, String>) two).get(sortKey);
-
-          if (val1 == null || val2 == null) return 0;
-
-          // do a numeric or string based comparison
-          int compareValue = 0;
-          if (numericColumns.contains(sortKey)) {
-            Double ratio1 = Double.parseDouble(val1);
-            Double ratio2 = Double.parseDouble(val2);
-            compareValue = ratio1.compareTo(ratio2);
-          } else {
-            compareValue = val1.compareTo(val2);
-          }
-
-          return (sortAscending ? compareValue : -compareValue);
-        }
-      });
+      // the snapshot is shared, sort a copy
+      List<StandingsRow> poolStanding = new ArrayList<StandingsRow>(snapshot.getStandings(evaluationTarget));
+      Collections.sort(poolStanding, order);
       return poolStanding;
     }
   }
 
-  class ProgressDecorator implements Decorator {
+  class NumberDecorator implements Decorator {
+
+    private final Column column;
+
+    public NumberDecorator(Column column) {
+      this.column = column;
+    }
 
     @Override
     public String render(Object object, Context context) {
-      Map<String, String> row = (Map<String, String>) object;
+      Object value = column.getProperty(object);
+      return value == null ? "" : nf.format(value);
+    }
+  }
 
-      int total = Integer.parseInt(row.get("Evaluations"));
-      int correct = Integer.parseInt(row.get("Correct"));
+  class ProgressDecorator implements Decorator {
 
-      double progress = Wilson.progress(total, correct);
+    @Override
+    public String render(Object object, Context context) {
+      double progress = ((StandingsRow) object).getProgress();
       if (progress == 1.0) {
         return "<div style='width:160px'>" + "<div style='float:left;background-color:blue;width:" + (progress * 150) + "px' >&nbsp;</div>"
             + "</div>";
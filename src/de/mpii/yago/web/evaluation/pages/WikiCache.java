@@ -0,0 +1,260 @@
+package de.mpii.yago.web.evaluation.pages;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.mpii.yago.web.evaluation.util.YagoDatabase;
+
+/**
+ * Cache for the results of WikiHelper lookups, keyed by the kind of lookup
+ * and (language, title, datestr). Misses are cached as well. Entries live
+ * in a size-bounded LRU map and are appended to a log file, so they survive
+ * restarts; the log is compacted when it grows too large.
+ *
+ * The directory of the log is set with WIKI_CACHE_DIR in db_settings.properties.
+ */
+class WikiCache {
+
+  /** Maximum number of cached lookups */
+  public static final int MAX_ENTRIES = 100000;
+
+  /** Time to live of found entries: revision ids of fixed dates never change */
+  public static final long HIT_TTL = 90L * 24 * 60 * 60 * 1000;
+
+  /** Time to live of misses, articles might be created in the meantime */
+  public static final long MISS_TTL = 24L * 60 * 60 * 1000;
+
+  private static final String LOG_FILE = "wikicache-2.tsv";
+
+  // log of earlier versions, which wrote misses and empty values alike
+  private static final String OLD_LOG_FILE = "wikicache.tsv";
+
+  // value field of a cached miss, escaped values never look like this
+  private static final String MISS = "\\N";
+
+  private static Logger logger = LoggerFactory.getLogger(WikiCache.class);
+
+  private static WikiCache instance;
+
+  /** A cached lookup result, value is null for misses */
+  static class CachedValue {
+
+    final String value;
+
+    final long time;
+
+    CachedValue(String value, long time) {
+      this.value = value;
+      this.time = time;
+    }
+
+    boolean isExpired(long now) {
+      return now - time > (value == null ? MISS_TTL : HIT_TTL);
+    }
+  }
+
+  private final Map<String, CachedValue> entries = new LinkedHashMap<String, CachedValue>(1024, 0.75f, true) {
+
+    private static final long serialVersionUID = 2034857601857262301L;
+
+    @Override
+    protected boolean removeEldestEntry(Entry<String, CachedValue> eldest) {
+      return size() > MAX_ENTRIES;
+    }
+  };
+
+  private final File logFile;
+
+  private Writer log;
+
+  private int logLines = 0;
+
+  static synchronized WikiCache getInstance() {
+    if (instance == null) {
+      File dir = new File(YagoDatabase.getProperty("WIKI_CACHE_DIR", new File(System.getProperty("java.io.tmpdir"), "yagowebeval-wikicache").getPath()));
+      instance = new WikiCache(dir);
+    }
+    return instance;
+  }
+
+  WikiCache(File dir) {
+    logFile = new File(dir, LOG_FILE);
+
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      logger.warn("Could not create cache directory " + dir + ", Wikipedia lookups are only cached in memory");
+      return;
+    }
+
+    load();
+  }
+
+  static String key(String lookup, String languageCode, String title, String datestr) {
+    return lookup + "\t" + languageCode + "\t" + (title == null ? "" : escape(title)) + "\t" + (datestr == null ? "" : datestr);
+  }
+
+  /**
+   * @return  The cached value (with a null value for a cached miss), or null if nothing is cached
+   */
+  synchronized CachedValue get(String key) {
+    CachedValue cached = entries.get(key);
+
+    if (cached != null && cached.isExpired(System.currentTimeMillis())) {
+      entries.remove(key);
+      return null;
+    }
+
+    return cached;
+  }
+
+  /**
+   * Caches a lookup result, value null caches a miss.
+   */
+  synchronized void put(String key, String value) {
+    CachedValue cached = new CachedValue(value, System.currentTimeMillis());
+    entries.put(key, cached);
+    append(key, cached);
+  }
+
+  private void load() {
+    File oldLogFile = new File(logFile.getParentFile(), OLD_LOG_FILE);
+    if (oldLogFile.exists() && oldLogFile.delete()) {
+      logger.info("Deleted Wikipedia cache " + oldLogFile + " of an earlier version");
+    }
+
+    if (!logFile.exists()) {
+      return;
+    }
+
+    long now = System.currentTimeMillis();
+
+    try {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(logFile), "UTF-8"));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          logLines++;
+          // time, lookup, language, title, datestr, value
+          String[] fields = line.split("\t", -1);
+          if (fields.length != 6) {
+            continue;
+          }
+          long time;
+          try {
+            time = Long.parseLong(fields[0]);
+          } catch (NumberFormatException e) {
+            logger.warn("Skipping corrupt line " + logLines + " of Wikipedia cache " + logFile);
+            continue;
+          }
+          CachedValue cached = new CachedValue(fields[5].equals(MISS) ? null : unescape(fields[5]), time);
+          String key = fields[1] + "\t" + fields[2] + "\t" + fields[3] + "\t" + fields[4];
+          if (cached.isExpired(now)) {
+            entries.remove(key);
+          } else {
+            entries.put(key, cached);
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      logger.warn("Could not read Wikipedia cache " + logFile + ": " + e);
+    }
+
+    logger.info("Loaded " + entries.size() + " cached Wikipedia lookups");
+  }
+
+  private void append(String key, CachedValue cached) {
+    if (!logFile.getParentFile().isDirectory()) {
+      return;
+    }
+
+    try {
+      if (logLines > 2 * MAX_ENTRIES) {
+        compact();
+        return;
+      }
+
+      if (log == null) {
+        log = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFile, true), "UTF-8"));
+      }
+
+      writeEntry(log, key, cached);
+      log.flush();
+      logLines++;
+    } catch (IOException e) {
+      logger.warn("Could not write Wikipedia cache " + logFile + ": " + e);
+    }
+  }
+
+  /**
+   * Rewrites the log with the entries currently in memory
+   */
+  private void compact() throws IOException {
+    if (log != null) {
+      log.close();
+      log = null;
+    }
+
+    File tmp = new File(logFile.getPath() + ".tmp");
+    Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+    List<Entry<String, CachedValue>> current = new ArrayList<Entry<String, CachedValue>>(entries.entrySet());
+    try {
+      for (Entry<String, CachedValue> e : current) {
+        writeEntry(writer, e.getKey(), e.getValue());
+      }
+    } finally {
+      writer.close();
+    }
+
+    if (!tmp.renameTo(logFile)) {
+      logFile.delete();
+      if (!tmp.renameTo(logFile)) {
+        throw new IOException("Could not replace " + logFile);
+      }
+    }
+
+    logLines = current.size();
+  }
+
+  private static void writeEntry(Writer writer, String key, CachedValue cached) throws IOException {
+    writer.write(Long.toString(cached.time));
+    writer.write('\t');
+    writer.write(key);
+    writer.write('\t');
+    writer.write(cached.value == null ? MISS : escape(cached.value));
+    writer.write('\n');
+  }
+
+  private static String escape(String s) {
+    return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+  }
+
+  private static String unescape(String s) {
+    StringBuilder result = new StringBuilder(s.length());
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '\\' && i + 1 < s.length()) {
+        char next = s.charAt(++i);
+        result.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+      } else {
+        result.append(c);
+      }
+    }
+    return result.toString();
+  }
+}
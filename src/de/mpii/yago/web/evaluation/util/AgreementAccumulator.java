@@ -0,0 +1,362 @@
+package de.mpii.yago.web.evaluation.util;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Inter-annotator agreement over the facts that were judged by several
+ * annotators, any number per fact, kept as counters so that agreement,
+ * Fleiss' kappa and the progress of the multiple evaluation are available
+ * in O(1).
+ *
+ * Built once in a single pass over the evaluation table ordered by fact,
+ * holding only the judgments of the current fact. Afterwards
+ * YagoDatabase.storeFactEvaluations replaces the contribution of every fact
+ * that gets new judgments, so nothing is remembered per fact.
+ *
+ * Agreement and kappa cover all facts with at least two right/wrong
+ * judgments, the progress of the multiple evaluation only facts whose
+ * relation and technique are not excluded.
+ */
+public class AgreementAccumulator {
+
+  private static Logger logger = LoggerFactory.getLogger(AgreementAccumulator.class);
+
+  /**
+   * The right/wrong judgments of one fact, at most one per user
+   */
+  static class Ratings {
+
+    private String[] users = new String[4];
+
+    private boolean[] correct = new boolean[4];
+
+    private int size = 0;
+
+    private int right = 0;
+
+    boolean included = true;
+
+    void add(String user, String eval) {
+      if (user == null) {
+        user = "";
+      }
+
+      boolean isRight = eval.equals(EvaluationManager.RIGHT);
+      if (!isRight && !eval.equals(EvaluationManager.WRONG)) {
+        return;
+      }
+
+      for (int i = 0; i < size; i++) {
+        if (users[i].equals(user)) {
+          return;
+        }
+      }
+
+      if (size == users.length) {
+        users = Arrays.copyOf(users, 2 * size);
+        correct = Arrays.copyOf(correct, 2 * size);
+      }
+      users[size] = user;
+      correct[size] = isRight;
+      size++;
+      if (isRight) {
+        right++;
+      }
+    }
+
+    /**
+     * @return  Number of right/wrong judgments
+     */
+    int size() {
+      return size;
+    }
+
+    void clear() {
+      size = 0;
+      right = 0;
+      included = true;
+    }
+
+    Ratings copy() {
+      Ratings copy = new Ratings();
+      copy.users = users.clone();
+      copy.correct = correct.clone();
+      copy.size = size;
+      copy.right = right;
+      copy.included = included;
+      return copy;
+    }
+  }
+
+  /** Counters of one annotator */
+  private static class UserCounts {
+
+    long judgments;
+
+    long right;
+
+    // facts the user judged together with others, and the sum of the
+    // fractions of the other annotators that agreed with the user on them
+    long facts;
+
+    double agreement;
+  }
+
+  // all of the following are guarded by AgreementAccumulator.class
+
+  private static final Map<String, UserCounts> users = new HashMap<String, UserCounts>();
+
+  // judged pairs and agreeing pairs by "user1\tuser2", user1 < user2
+  private static final Map<String, long[]> userPairs = new HashMap<String, long[]>();
+
+  // Fleiss' kappa: facts with at least two judgments, sum of their observed
+  // agreement, and the judgments of these facts per category
+  private static long ratedFacts;
+
+  private static double observedAgreement;
+
+  private static long ratedRight;
+
+  private static long ratedWrong;
+
+  // judged facts and facts judged several times, of those not excluded
+  private static long includedFacts;
+
+  private static long includedRatedFacts;
+
+  private static volatile boolean loaded = false;
+
+  public static void ensureLoaded() throws SQLException {
+    if (!loaded) {
+      // no evaluation is stored meanwhile, see YagoDatabase.judgmentLock
+      YagoDatabase.judgmentLock.writeLock().lock();
+      try {
+        synchronized (AgreementAccumulator.class) {
+          if (!loaded) {
+            load();
+          }
+        }
+      } finally {
+        YagoDatabase.judgmentLock.writeLock().unlock();
+      }
+    }
+  }
+
+  /**
+   * (Re)builds all counters in one pass over the evaluation table
+   */
+  public static synchronized void load() throws SQLException {
+    loaded = false;
+
+    users.clear();
+    userPairs.clear();
+    ratedFacts = 0;
+    observedAgreement = 0.0;
+    ratedRight = 0;
+    ratedWrong = 0;
+    includedFacts = 0;
+    includedRatedFacts = 0;
+
+    final EvaluationSettings settings = YagoDatabase.getSettings();
+    final Ratings fact = new Ratings();
+    final String[] factId = { null };
+
+    YagoDatabase.scanJudgments(new YagoDatabase.JudgmentHandler() {
+
+      @Override
+      public void judgment(String id, String user, String eval, String relation, String technique) {
+        if (!id.equals(factId[0])) {
+          add(fact, 1);
+          fact.clear();
+          fact.included = isIncluded(settings, relation, technique);
+          factId[0] = id;
+        }
+        fact.add(user, eval);
+      }
+    });
+    add(fact, 1);
+
+    loaded = true;
+    logger.info("Loaded agreement of " + ratedFacts + " facts evaluated several times");
+  }
+
+  /**
+   * Replaces the contribution of a fact that got new judgments
+   *
+   * @param before  The judgments of the fact before
+   * @param after  All judgments of the fact now
+   */
+  public static synchronized void recordJudgments(Ratings before, Ratings after) {
+    if (!loaded) {
+      return; // will be part of the initial load
+    }
+
+    add(before, -1);
+    add(after, 1);
+  }
+
+  /**
+   * @return  The percentage of observed agreement among the annotators of facts evaluated several times, and Fleiss' kappa
+   */
+  public static synchronized double[] getAgreementAndKappa() {
+    if (ratedFacts == 0) {
+      return new double[] { 0.0, 0.0 };
+    }
+
+    double agreement = observedAgreement / ratedFacts;
+    double pRight = (double) ratedRight / (ratedRight + ratedWrong);
+    double expected = pRight * pRight + (1 - pRight) * (1 - pRight);
+    double kappa = (agreement - expected) / (1 - expected);
+
+    if (Double.isNaN(kappa) || Double.isInfinite(kappa)) {
+      kappa = 0.0;
+    }
+
+    return new double[] { agreement * 100, kappa };
+  }
+
+  /**
+   * @return  The number of facts evaluated several times, and the progress towards EvaluationManager.DOUBLE_EVALUATION_FRACTION (at most 1.0)
+   */
+  public static synchronized double[] getTwiceEvaluatedFactsTotalAndProgress() {
+    double fractionDone = (double) includedRatedFacts / includedFacts;
+    double progress = fractionDone / EvaluationManager.DOUBLE_EVALUATION_FRACTION;
+    if (progress > 1.0 || Double.isNaN(progress)) {
+      progress = 1.0;
+    }
+    return new double[] { includedRatedFacts, progress };
+  }
+
+  /**
+   * @return  The percentage of other annotators that agreed with the user, averaged over the user's facts evaluated several times, or 0 if there are none
+   */
+  public static synchronized double getUserAgreement(String user) {
+    UserCounts counts = users.get(user);
+    if (counts == null || counts.facts == 0) {
+      return 0.0;
+    }
+    return 100.0 * counts.agreement / counts.facts;
+  }
+
+  /**
+   * @return  Number of the user's facts that were evaluated by others too
+   */
+  public static synchronized long getUserSharedFacts(String user) {
+    UserCounts counts = users.get(user);
+    return counts == null ? 0 : counts.facts;
+  }
+
+  /**
+   * @return  The pairs of users that evaluated at least one fact in common
+   */
+  public static synchronized List<String[]> getUserPairs() {
+    List<String[]> pairs = new ArrayList<String[]>();
+    for (Map.Entry<String, long[]> pair : userPairs.entrySet()) {
+      if (pair.getValue()[0] > 0) {
+        pairs.add(pair.getKey().split("\t", 2));
+      }
+    }
+    return pairs;
+  }
+
+  /**
+   * @return  Number of facts evaluated by both users
+   */
+  public static synchronized long getPairSharedFacts(String user1, String user2) {
+    long[] counts = userPairs.get(pairKey(user1, user2));
+    return counts == null ? 0 : counts[0];
+  }
+
+  /**
+   * @return  The percentage of facts evaluated by both users on which they agree, or 0 if there are none
+   */
+  public static synchronized double getPairAgreement(String user1, String user2) {
+    long[] counts = userPairs.get(pairKey(user1, user2));
+    if (counts == null || counts[0] == 0) {
+      return 0.0;
+    }
+    return 100.0 * counts[1] / counts[0];
+  }
+
+  static boolean isIncluded(EvaluationSettings settings, String relation, String technique) {
+    return !settings.getExcludeRelations().contains(relation) && !settings.getExcludeTechniques().contains(technique);
+  }
+
+  /**
+   * Adds (sign 1) or removes (sign -1) the contribution of a fact
+   */
+  private static void add(Ratings fact, int sign) {
+    int n = fact.size;
+    if (n == 0) {
+      return;
+    }
+
+    int right = fact.right;
+    int wrong = n - right;
+
+    if (fact.included) {
+      includedFacts += sign;
+      if (n >= 2) {
+        includedRatedFacts += sign;
+      }
+    }
+
+    for (int i = 0; i < n; i++) {
+      UserCounts counts = countsOf(fact.users[i]);
+      counts.judgments += sign;
+      if (fact.correct[i]) {
+        counts.right += sign;
+      }
+    }
+
+    if (n < 2) {
+      return;
+    }
+
+    ratedFacts += sign;
+    observedAgreement += sign * ((double) right * (right - 1) + (double) wrong * (wrong - 1)) / ((double) n * (n - 1));
+    ratedRight += sign * right;
+    ratedWrong += sign * wrong;
+
+    for (int i = 0; i < n; i++) {
+      int same = fact.correct[i] ? right : wrong;
+      UserCounts counts = countsOf(fact.users[i]);
+      counts.facts += sign;
+      counts.agreement += sign * (double) (same - 1) / (n - 1);
+
+      for (int j = i + 1; j < n; j++) {
+        String key = pairKey(fact.users[i], fact.users[j]);
+        long[] pair = userPairs.get(key);
+        if (pair == null) {
+          pair = new long[2];
+          userPairs.put(key, pair);
+        }
+        pair[0] += sign;
+        if (fact.correct[i] == fact.correct[j]) {
+          pair[1] += sign;
+        }
+      }
+    }
+  }
+
+  private static UserCounts countsOf(String user) {
+    UserCounts counts = users.get(user);
+    if (counts == null) {
+      counts = new UserCounts();
+      users.put(user, counts);
+    }
+    return counts;
+  }
+
+  private static String pairKey(String user1, String user2) {
+    return user1.compareTo(user2) < 0 ? user1 + "\t" + user2 : user2 + "\t" + user1;
+  }
+}
@@ -0,0 +1,78 @@
+package de.mpii.yago.web.evaluation.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+
+/**
+ * The stream of facts assigned to one annotator session. Keeps the target
+ * the session is currently working on, so that consecutive facts come from
+ * the same relation or technique (this simplifies evaluation).
+ * 
+ * Stored in the HTTP session; releases its target when the session ends.
+ */
+public class AssignmentStream implements HttpSessionBindingListener {
+
+  public static final String SESSION_KEY = "assignmentStream";
+
+  private volatile TargetState current;
+
+  private final AtomicInteger remainingFacts = new AtomicInteger();
+
+  public TargetState getCurrent() {
+    return current;
+  }
+
+  /**
+   * Takes one fact from the budget of the current target.
+   *
+   * @return  true if the session should get another fact for the current target
+   */
+  public boolean takeFromCurrent() {
+    while (true) {
+      int remaining = remainingFacts.get();
+      if (current == null || remaining <= 0) {
+        return false;
+      }
+      if (remainingFacts.compareAndSet(remaining, remaining - 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Moves the stream to a new target. The caller must already have claimed
+   * the new target; the claim on the previous target is released.
+   *
+   * @param state Target the stream continues with
+   * @param facts Number of further facts to assign for this target
+   */
+  public void switchTo(TargetState state, int facts) {
+    TargetState previous = current;
+    current = state;
+    remainingFacts.set(facts);
+    if (previous != null) {
+      previous.release();
+    }
+  }
+
+  public void release() {
+    TargetState previous = current;
+    current = null;
+    remainingFacts.set(0);
+    if (previous != null) {
+      previous.release();
+    }
+  }
+
+  @Override
+  public void valueBound(HttpSessionBindingEvent event) {
+    // nothing to do
+  }
+
+  @Override
+  public void valueUnbound(HttpSessionBindingEvent event) {
+    release();
+  }
+}
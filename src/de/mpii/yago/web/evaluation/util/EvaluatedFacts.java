@@ -0,0 +1,111 @@
+package de.mpii.yago.web.evaluation.util;
+
+import java.sql.SQLException;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the ids of all facts that were evaluated, so that sampling does not
+ * need to check the evaluation table. Facts are known by their yago id, and
+ * additionally by their id in the sorted sampling tables, so that sampled
+ * ids can be rejected before the facts are fetched.
+ *
+ * Loaded once from the evaluation table, updated with every stored
+ * evaluation.
+ */
+public class EvaluatedFacts {
+
+  /** Sorted table of relation sampling */
+  public static final String RELATION_TABLE = "facts_rel_tech_sorted";
+
+  /** Sorted table of technique sampling */
+  public static final String TECHNIQUE_TABLE = "facts_tech_rel_sorted";
+
+  private static Logger logger = LoggerFactory.getLogger(EvaluatedFacts.class);
+
+  private static final Set<String> factIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  // sorted ids of evaluated facts, guarded by the BitSet itself
+  private static final BitSet relationIds = new BitSet();
+
+  private static final BitSet techniqueIds = new BitSet();
+
+  private static volatile boolean loaded = false;
+
+  public static void ensureLoaded() throws SQLException {
+    if (!loaded) {
+      synchronized (EvaluatedFacts.class) {
+        if (!loaded) {
+          load();
+        }
+      }
+    }
+  }
+
+  private static void load() throws SQLException {
+    factIds.addAll(YagoDatabase.getEvaluatedFactIds());
+
+    BitSet ids = YagoDatabase.getEvaluatedSortedIds(RELATION_TABLE);
+    synchronized (relationIds) {
+      relationIds.or(ids);
+    }
+    ids = YagoDatabase.getEvaluatedSortedIds(TECHNIQUE_TABLE);
+    synchronized (techniqueIds) {
+      techniqueIds.or(ids);
+    }
+
+    loaded = true;
+    logger.info("Loaded " + factIds.size() + " evaluated facts");
+  }
+
+  /**
+   * @return  true if the fact with this yago id was evaluated
+   */
+  public static boolean isEvaluated(String factId) {
+    return factIds.contains(factId);
+  }
+
+  /**
+   * @param table RELATION_TABLE or TECHNIQUE_TABLE
+   * @return  true if the fact with this id in the sorted table is known to be evaluated
+   */
+  public static boolean isEvaluated(String table, int sortedId) {
+    BitSet ids = idsOf(table);
+    synchronized (ids) {
+      return ids.get(sortedId);
+    }
+  }
+
+  /**
+   * Remembers that the fact with this id in the sorted table was evaluated.
+   * Sampling calls this for facts it fetched and then found in the set of
+   * evaluated yago ids.
+   */
+  public static void markEvaluated(String table, int sortedId) {
+    BitSet ids = idsOf(table);
+    synchronized (ids) {
+      ids.set(sortedId);
+    }
+  }
+
+  /**
+   * Adds a newly evaluated fact
+   */
+  public static void add(String factId) {
+    factIds.add(factId);
+  }
+
+  private static BitSet idsOf(String table) {
+    if (table.equals(RELATION_TABLE)) {
+      return relationIds;
+    } else if (table.equals(TECHNIQUE_TABLE)) {
+      return techniqueIds;
+    }
+    throw new IllegalArgumentException("Unknown table " + table);
+  }
+}
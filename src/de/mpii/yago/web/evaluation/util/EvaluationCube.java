@@ -0,0 +1,178 @@
+package de.mpii.yago.web.evaluation.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts of right and wrong evaluations by relation, technique and user,
+ * one cell per combination that occurs. For every dimension the cells of
+ * each value are indexed in a sorted array of cell ids, so a slice is
+ * answered by intersecting the arrays of the fixed dimensions.
+ *
+ * Dimension values are the dictionary codes of EvaluationStore, which keeps
+ * the cube up to date. Not thread-safe, guarded by EvaluationStore.
+ */
+class EvaluationCube {
+
+  static final int RELATION = 0;
+
+  static final int TECHNIQUE = 1;
+
+  static final int USER = 2;
+
+  private static final int DIMENSIONS = 3;
+
+  // bits per code in the key of a cell
+  private static final int CODE_BITS = 21;
+
+  /** Ascending cell ids of one dimension value */
+  private static class Postings {
+
+    private int[] cells = new int[4];
+
+    private int size = 0;
+
+    void add(int cell) {
+      if (size == cells.length) {
+        cells = Arrays.copyOf(cells, 2 * size);
+      }
+      cells[size++] = cell;
+    }
+
+    boolean contains(int cell) {
+      return Arrays.binarySearch(cells, 0, size, cell) >= 0;
+    }
+  }
+
+  // codes of the cells by dimension
+  private int[][] codes = new int[DIMENSIONS][64];
+
+  private int[] right = new int[64];
+
+  private int[] wrong = new int[64];
+
+  private int cells = 0;
+
+  private final Map<Long, Integer> cellIds = new HashMap<Long, Integer>();
+
+  // postings by dimension and code
+  private final List<List<Postings>> index = new ArrayList<List<Postings>>();
+
+  EvaluationCube() {
+    for (int d = 0; d < DIMENSIONS; d++) {
+      index.add(new ArrayList<Postings>());
+    }
+  }
+
+  void add(int relation, int technique, int user, boolean isRight) {
+    long key = ((long) relation << (2 * CODE_BITS)) | ((long) technique << CODE_BITS) | user;
+    Integer cell = cellIds.get(key);
+    if (cell == null) {
+      cell = newCell(relation, technique, user);
+      cellIds.put(key, cell);
+    }
+
+    if (isRight) {
+      right[cell]++;
+    } else {
+      wrong[cell]++;
+    }
+  }
+
+  private int newCell(int relation, int technique, int user) {
+    if (cells == right.length) {
+      for (int d = 0; d < DIMENSIONS; d++) {
+        codes[d] = Arrays.copyOf(codes[d], 2 * cells);
+      }
+      right = Arrays.copyOf(right, 2 * cells);
+      wrong = Arrays.copyOf(wrong, 2 * cells);
+    }
+
+    int cell = cells++;
+    codes[RELATION][cell] = relation;
+    codes[TECHNIQUE][cell] = technique;
+    codes[USER][cell] = user;
+    right[cell] = 0;
+    wrong[cell] = 0;
+
+    // ids are handed out in ascending order, so the postings stay sorted
+    for (int d = 0; d < DIMENSIONS; d++) {
+      postings(d, codes[d][cell]).add(cell);
+    }
+    return cell;
+  }
+
+  private Postings postings(int dimension, int code) {
+    List<Postings> values = index.get(dimension);
+    while (values.size() <= code) {
+      values.add(new Postings());
+    }
+    return values.get(code);
+  }
+
+  /**
+   * Sums the cells of a slice.
+   *
+   * @param slice  The code per dimension, -1 for all values
+   * @return  The number of right and of wrong evaluations in the slice
+   */
+  int[] count(int[] slice) {
+    List<Postings> fixed = new ArrayList<Postings>();
+    for (int d = 0; d < DIMENSIONS; d++) {
+      if (slice[d] < 0) {
+        continue;
+      }
+      if (slice[d] >= index.get(d).size()) {
+        return new int[] { 0, 0 };
+      }
+      fixed.add(index.get(d).get(slice[d]));
+    }
+
+    int sumRight = 0;
+    int sumWrong = 0;
+
+    if (fixed.isEmpty()) {
+      for (int cell = 0; cell < cells; cell++) {
+        sumRight += right[cell];
+        sumWrong += wrong[cell];
+      }
+      return new int[] { sumRight, sumWrong };
+    }
+
+    // walk the shortest postings and look the cells up in the others
+    Postings shortest = fixed.get(0);
+    for (Postings postings : fixed) {
+      if (postings.size < shortest.size) {
+        shortest = postings;
+      }
+    }
+
+    for (int i = 0; i < shortest.size; i++) {
+      int cell = shortest.cells[i];
+      boolean inSlice = true;
+      for (Postings postings : fixed) {
+        if (postings != shortest && !postings.contains(cell)) {
+          inSlice = false;
+          break;
+        }
+      }
+      if (inSlice) {
+        sumRight += right[cell];
+        sumWrong += wrong[cell];
+      }
+    }
+
+    return new int[] { sumRight, sumWrong };
+  }
+
+  void clear() {
+    cells = 0;
+    cellIds.clear();
+    for (List<Postings> values : index) {
+      values.clear();
+    }
+  }
+}
@@ -0,0 +1,51 @@
+package de.mpii.yago.web.evaluation.util;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Immutable snapshot of the evaluation_settings table and the closure of
+ * the literal classes. Shared by all threads, see YagoDatabase.getSettings().
+ */
+public class EvaluationSettings {
+
+  private final Set<String> separateTechniques;
+
+  private final Set<String> excludeTechniques;
+
+  private final Set<String> excludeRelations;
+
+  private final Set<String> economicRelations;
+
+  private final Set<String> literalClasses;
+
+  public EvaluationSettings(Set<String> separateTechniques, Set<String> excludeTechniques, Set<String> excludeRelations, Set<String> economicRelations,
+      Set<String> literalClasses) {
+    this.separateTechniques = Collections.unmodifiableSet(new HashSet<String>(separateTechniques));
+    this.excludeTechniques = Collections.unmodifiableSet(new HashSet<String>(excludeTechniques));
+    this.excludeRelations = Collections.unmodifiableSet(new HashSet<String>(excludeRelations));
+    this.economicRelations = Collections.unmodifiableSet(new HashSet<String>(economicRelations));
+    this.literalClasses = Collections.unmodifiableSet(new HashSet<String>(literalClasses));
+  }
+
+  public Set<String> getSeparateTechniques() {
+    return separateTechniques;
+  }
+
+  public Set<String> getExcludeTechniques() {
+    return excludeTechniques;
+  }
+
+  public Set<String> getExcludeRelations() {
+    return excludeRelations;
+  }
+
+  public Set<String> getEconomicRelations() {
+    return economicRelations;
+  }
+
+  public Set<String> getLiteralClasses() {
+    return literalClasses;
+  }
+}
@@ -0,0 +1,278 @@
+package de.mpii.yago.web.evaluation.util;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.mpii.yago.web.evaluation.model.EvaluationEntry;
+import de.mpii.yago.web.evaluation.model.StandingsRow;
+
+/**
+ * Column store of the evaluations the standings are computed from: the
+ * first right/wrong evaluation of every fact whose relation and technique
+ * are not excluded. Relation, technique, user and target are dictionary
+ * encoded to int codes and verdicts are kept in a byte array, so
+ * aggregations are plain loops over arrays and no fact is kept as objects.
+ * An EvaluationCube over relation, technique and user answers slices such
+ * as the precision of a relation for one technique or the error rate of a
+ * user without a scan.
+ *
+ * Loaded once from the evaluation table, afterwards appended to by
+ * YagoDatabase.storeFactEvaluations.
+ */
+public class EvaluationStore {
+
+  /** The columns that are dictionary encoded */
+  public enum Dimension {
+    RELATION, TECHNIQUE, USER, TARGET
+  }
+
+  /** Verdict codes */
+  public static final byte WRONG = 0;
+
+  public static final byte RIGHT = 1;
+
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private static Logger logger = LoggerFactory.getLogger(EvaluationStore.class);
+
+  /**
+   * Maps the values of a column to consecutive int codes
+   */
+  static class Dictionary {
+
+    private final Map<String, Integer> codes = new HashMap<String, Integer>();
+
+    private final List<String> values = new ArrayList<String>();
+
+    int encode(String value) {
+      Integer code = codes.get(value);
+      if (code == null) {
+        code = values.size();
+        codes.put(value, code);
+        values.add(value);
+      }
+      return code;
+    }
+
+    /**
+     * @return  The code of the value, -1 if it does not occur
+     */
+    int code(String value) {
+      Integer code = codes.get(value);
+      return code == null ? -1 : code;
+    }
+
+    String value(int code) {
+      return values.get(code);
+    }
+
+    int size() {
+      return values.size();
+    }
+
+    void clear() {
+      codes.clear();
+      values.clear();
+    }
+  }
+
+  // all of the following are guarded by EvaluationStore.class
+
+  private static final Dictionary[] dictionaries = new Dictionary[Dimension.values().length];
+
+  static {
+    for (int i = 0; i < dictionaries.length; i++) {
+      dictionaries[i] = new Dictionary();
+    }
+  }
+
+  // dictionary codes by dimension and row
+  private static int[][] columns = new int[Dimension.values().length][INITIAL_CAPACITY];
+
+  private static byte[] verdicts = new byte[INITIAL_CAPACITY];
+
+  private static int size = 0;
+
+  private static final EvaluationCube cube = new EvaluationCube();
+
+  private static volatile boolean loaded = false;
+
+  public static void ensureLoaded() throws SQLException {
+    if (!loaded) {
+      // no evaluation is stored meanwhile, see YagoDatabase.judgmentLock
+      YagoDatabase.judgmentLock.writeLock().lock();
+      try {
+        synchronized (EvaluationStore.class) {
+          if (!loaded) {
+            load();
+          }
+        }
+      } finally {
+        YagoDatabase.judgmentLock.writeLock().unlock();
+      }
+    }
+  }
+
+  /**
+   * (Re)loads the store from the evaluation table
+   */
+  public static synchronized void load() throws SQLException {
+    loaded = false;
+
+    for (Dictionary dictionary : dictionaries) {
+      dictionary.clear();
+    }
+    size = 0;
+    cube.clear();
+
+    YagoDatabase.scanFirstEvaluations(new YagoDatabase.EvaluationHandler() {
+
+      @Override
+      public void evaluation(String relation, String technique, String user, String eval, String target) {
+        add(relation, technique, user, eval, target);
+      }
+    });
+
+    loaded = true;
+    logger.info("Loaded " + size + " evaluations, " + dictionaries[Dimension.RELATION.ordinal()].size() + " relations, "
+        + dictionaries[Dimension.USER.ordinal()].size() + " users");
+  }
+
+  /**
+   * Appends a newly stored evaluation. Must only be called for the first
+   * right/wrong evaluation of a fact whose relation and technique are not
+   * excluded.
+   */
+  public static synchronized void append(EvaluationEntry e) {
+    if (!loaded) {
+      return; // will be part of the initial load
+    }
+
+    add(e.getFact().getRelation(), e.getTechnique(), e.getUser(), e.getEvaluationResult(), e.getTarget());
+  }
+
+  private static void add(String relation, String technique, String user, String eval, String target) {
+    if (size == verdicts.length) {
+      int capacity = 2 * size;
+      for (int i = 0; i < columns.length; i++) {
+        columns[i] = Arrays.copyOf(columns[i], capacity);
+      }
+      verdicts = Arrays.copyOf(verdicts, capacity);
+    }
+
+    columns[Dimension.RELATION.ordinal()][size] = dictionaries[Dimension.RELATION.ordinal()].encode(relation);
+    columns[Dimension.TECHNIQUE.ordinal()][size] = dictionaries[Dimension.TECHNIQUE.ordinal()].encode(technique);
+    columns[Dimension.USER.ordinal()][size] = dictionaries[Dimension.USER.ordinal()].encode(user);
+    columns[Dimension.TARGET.ordinal()][size] = dictionaries[Dimension.TARGET.ordinal()].encode(target);
+    verdicts[size] = EvaluationManager.RIGHT.equals(eval) ? RIGHT : WRONG;
+
+    cube.add(columns[Dimension.RELATION.ordinal()][size], columns[Dimension.TECHNIQUE.ordinal()][size], columns[Dimension.USER.ordinal()][size], verdicts[size] == RIGHT);
+    size++;
+  }
+
+  /**
+   * @return  Number of evaluations
+   */
+  public static synchronized int size() {
+    return size;
+  }
+
+  /**
+   * @return  Number of correct evaluations
+   */
+  public static synchronized int countCorrect() {
+    int correct = 0;
+    for (int i = 0; i < size; i++) {
+      correct += verdicts[i];
+    }
+    return correct;
+  }
+
+  /**
+   * Counts the evaluations and the correct ones per value of a dimension.
+   *
+   * @param evaluationTarget  Only evaluations made for this kind of target (EvaluationEntry.EVAL_TARGET_RELATION or EvaluationEntry.EVAL_TARGET_TECHNIQUE), null for all
+   * @return  Total and correct evaluations by value, values without evaluations are left out
+   */
+  public static synchronized Map<String, int[]> count(Dimension dimension, String evaluationTarget) {
+    Dictionary dictionary = dictionaries[dimension.ordinal()];
+    int[] column = columns[dimension.ordinal()];
+
+    int[] totals = new int[dictionary.size()];
+    int[] correct = new int[dictionary.size()];
+
+    if (evaluationTarget == null) {
+      for (int i = 0; i < size; i++) {
+        totals[column[i]]++;
+        correct[column[i]] += verdicts[i];
+      }
+    } else {
+      int targetCode = dictionaries[Dimension.TARGET.ordinal()].code(evaluationTarget);
+      int[] targets = columns[Dimension.TARGET.ordinal()];
+      for (int i = 0; i < size; i++) {
+        if (targets[i] == targetCode) {
+          totals[column[i]]++;
+          correct[column[i]] += verdicts[i];
+        }
+      }
+    }
+
+    Map<String, int[]> counts = new HashMap<String, int[]>();
+    for (int code = 0; code < totals.length; code++) {
+      if (totals[code] > 0) {
+        counts.put(dictionary.value(code), new int[] { totals[code], correct[code] });
+      }
+    }
+    return counts;
+  }
+
+  /**
+   * Counts the evaluations of a slice of the relation x technique x user
+   * cube, e.g. countSlice(relation, technique, null) for the precision of a
+   * relation for one technique, or countSlice(null, null, user) for the
+   * error rate of a user.
+   *
+   * @param relation  The relation, null for all relations
+   * @param technique  The technique, null for all techniques
+   * @param user  The user, null for all users
+   * @return  Total and correct evaluations in the slice
+   */
+  public static synchronized int[] countSlice(String relation, String technique, String user) {
+    int[] slice = new int[3];
+    slice[EvaluationCube.RELATION] = relation == null ? -1 : dictionaries[Dimension.RELATION.ordinal()].code(relation);
+    slice[EvaluationCube.TECHNIQUE] = technique == null ? -1 : dictionaries[Dimension.TECHNIQUE.ordinal()].code(technique);
+    slice[EvaluationCube.USER] = user == null ? -1 : dictionaries[Dimension.USER.ordinal()].code(user);
+
+    if ((relation != null && slice[EvaluationCube.RELATION] < 0) || (technique != null && slice[EvaluationCube.TECHNIQUE] < 0) || (user != null && slice[EvaluationCube.USER] < 0)) {
+      return new int[] { 0, 0 }; // value without evaluations
+    }
+
+    int[] counts = cube.count(slice);
+    return new int[] { counts[0] + counts[1], counts[0] };
+  }
+
+  /**
+   * Returns the standings of all targets of a kind that have evaluations, sorted by target
+   *
+   * @param evaluationTarget  EvaluationEntry.EVAL_TARGET_RELATION or EvaluationEntry.EVAL_TARGET_TECHNIQUE
+   */
+  public static List<StandingsRow> getStandings(String evaluationTarget) {
+    Dimension dimension = evaluationTarget.equals(EvaluationEntry.EVAL_TARGET_RELATION) ? Dimension.RELATION : Dimension.TECHNIQUE;
+
+    List<StandingsRow> standings = new ArrayList<StandingsRow>();
+    for (Map.Entry<String, int[]> pool : count(dimension, evaluationTarget).entrySet()) {
+      standings.add(new StandingsRow(pool.getKey(), pool.getValue()[0], pool.getValue()[1]));
+    }
+
+    Collections.sort(standings, StandingsRow.BY_TARGET);
+    return standings;
+  }
+}
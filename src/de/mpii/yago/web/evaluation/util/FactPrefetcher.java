@@ -0,0 +1,302 @@
+package de.mpii.yago.web.evaluation.util;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.mpii.yago.web.evaluation.model.EvaluationEntry;
+import de.mpii.yago.web.evaluation.model.Fact;
+
+/**
+ * Keeps a bounded queue of ready-to-serve facts for each evaluation target
+ * (relation or technique). Queues are refilled in batches by a background
+ * producer, so serving a fact is usually just a dequeue.
+ *
+ * No sampled fact is lost: a served fact is leased to its session until it
+ * is judged (see judged) or the lease expires, and facts that are dropped
+ * from a queue or whose lease expired are released to their sampler, which
+ * draws them again. So a target is only exhausted when all of its facts
+ * were judged or cannot be served.
+ */
+public class FactPrefetcher {
+
+  /** Number of facts sampled from the database per refill */
+  public static final int BATCH_SIZE = 20;
+
+  /** Maximum number of facts buffered per target */
+  public static final int QUEUE_CAPACITY = 2 * BATCH_SIZE;
+
+  /** A refill is scheduled as soon as a queue holds fewer facts than this */
+  public static final int LOW_WATER_MARK = BATCH_SIZE / 2;
+
+  /** Number of upcoming targets that are filled ahead of time */
+  public static final int WARM_UP_TARGETS = 5;
+
+  /** Time in ms after which a served fact that was not judged is drawn again */
+  public static final long LEASE_TIMEOUT = 30 * 60 * 1000L;
+
+  /**
+   * A sampled fact and the sampler it was drawn from
+   */
+  private static class Sample {
+
+    final Fact fact;
+
+    final FactSampler sampler;
+
+    volatile long leasedAt;
+
+    Sample(Fact fact, FactSampler sampler) {
+      this.fact = fact;
+      this.sampler = sampler;
+    }
+
+    void release() {
+      sampler.release(fact.getSampleId());
+    }
+  }
+
+  private static Logger logger = LoggerFactory.getLogger(FactPrefetcher.class);
+
+  private static final ConcurrentMap<String, BlockingQueue<Sample>> queues = new ConcurrentHashMap<String, BlockingQueue<Sample>>();
+
+  // served facts by fact id
+  private static final ConcurrentMap<String, Sample> leases = new ConcurrentHashMap<String, Sample>();
+
+  private static final AtomicLong lastExpiry = new AtomicLong();
+
+  // keys of targets that have a refill scheduled or running
+  private static final Set<String> pendingRefills = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  private static ExecutorService producer = createProducer();
+
+  private static ExecutorService createProducer() {
+    return Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "fact-prefetcher");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /**
+   * Returns the next buffered fact for the target. If nothing is buffered yet,
+   * a batch is sampled synchronously using the given database.
+   *
+   * @param evaluationTarget  EvaluationEntry.EVAL_TARGET_RELATION or EvaluationEntry.EVAL_TARGET_TECHNIQUE
+   * @param target  The relation or technique
+   * @return  A fact to evaluate, or null if sampling did not yield any fact
+   * @throws SQLException
+   */
+  public static Fact poll(String evaluationTarget, String target, YagoDatabase ydb) throws SQLException {
+    expireLeases();
+
+    String key = key(evaluationTarget, target);
+    BlockingQueue<Sample> queue = queueFor(key);
+
+    Sample sample = queue.poll();
+
+    if (sample == null) {
+      // nothing buffered, sample in the caller's thread and keep the rest
+      for (Sample s : fetchBatch(evaluationTarget, target, ydb)) {
+        if (sample == null) {
+          sample = s;
+        } else if (!queue.offer(s)) {
+          s.release();
+        }
+      }
+    }
+
+    if (queue.size() < LOW_WATER_MARK) {
+      scheduleRefill(evaluationTarget, target);
+    }
+
+    if (sample == null) {
+      return null;
+    }
+
+    sample.leasedAt = System.currentTimeMillis();
+    Sample previous = leases.put(sample.fact.getId(), sample);
+    if (previous != null && previous != sample) {
+      // the same fact drawn for another target, the other draw is repeated
+      // later and skipped if the fact was judged by then
+      previous.release();
+    }
+
+    return sample.fact;
+  }
+
+  /**
+   * Ends the leases of judged facts, so that their samplers know them as done
+   */
+  public static void judged(Collection<String> factIds) {
+    for (String factId : factIds) {
+      Sample sample = leases.remove(factId);
+      if (sample != null) {
+        sample.sampler.settle(sample.fact.getSampleId());
+      }
+    }
+  }
+
+  /**
+   * Schedules background refills for the first WARM_UP_TARGETS targets, so
+   * that they can be served without waiting for the database.
+   *
+   * @param targets Targets in the order in which they will be served
+   */
+  public static void warmUp(Iterable<TargetState> targets) {
+    int count = 0;
+    for (TargetState state : targets) {
+      if (count++ >= WARM_UP_TARGETS) {
+        break;
+      }
+      if (queueFor(key(state.getEvaluationTarget(), state.getTarget())).size() < LOW_WATER_MARK) {
+        scheduleRefill(state.getEvaluationTarget(), state.getTarget());
+      }
+    }
+  }
+
+  /**
+   * Drops all buffered facts, e.g. after the evaluation settings changed,
+   * and releases them to their samplers.
+   */
+  public static void clear() {
+    for (String key : queues.keySet()) {
+      BlockingQueue<Sample> queue = queues.remove(key);
+      if (queue == null) {
+        continue;
+      }
+      List<Sample> dropped = new ArrayList<Sample>();
+      queue.drainTo(dropped);
+      for (Sample sample : dropped) {
+        sample.release();
+      }
+    }
+  }
+
+  public static void shutdown() {
+    producer.shutdownNow();
+    try {
+      producer.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    queues.clear();
+    leases.clear();
+    pendingRefills.clear();
+  }
+
+  /**
+   * Releases the facts whose lease expired, at most once a minute
+   */
+  private static void expireLeases() {
+    long now = System.currentTimeMillis();
+    long last = lastExpiry.get();
+    if (now - last < 60 * 1000L || !lastExpiry.compareAndSet(last, now)) {
+      return;
+    }
+
+    for (Map.Entry<String, Sample> lease : leases.entrySet()) {
+      Sample sample = lease.getValue();
+      if (now - sample.leasedAt >= LEASE_TIMEOUT && leases.remove(lease.getKey(), sample)) {
+        sample.release();
+      }
+    }
+  }
+
+  private static void scheduleRefill(final String evaluationTarget, final String target) {
+    final String key = key(evaluationTarget, target);
+
+    if (producer.isShutdown() || !pendingRefills.add(key)) {
+      return; // already scheduled
+    }
+
+    producer.execute(new Runnable() {
+
+      @Override
+      public void run() {
+        try {
+          BlockingQueue<Sample> queue = queueFor(key);
+          if (queue.size() >= LOW_WATER_MARK) {
+            return;
+          }
+          for (Sample s : fetchBatch(evaluationTarget, target, YagoDatabase.getInstance())) {
+            if (!queue.offer(s)) {
+              s.release(); // full
+            }
+          }
+        } catch (SQLException e) {
+          logger.warn("Could not prefetch facts for " + evaluationTarget + " '" + target + "': " + e);
+        } finally {
+          pendingRefills.remove(key);
+        }
+      }
+    });
+  }
+
+  private static List<Sample> fetchBatch(String evaluationTarget, String target, YagoDatabase ydb) throws SQLException {
+    List<Sample> samples = new ArrayList<Sample>();
+
+    FactSampler sampler = YagoDatabase.getSampler(evaluationTarget, target);
+    if (sampler == null) {
+      return samples;
+    }
+
+    Queue<Fact> batch;
+
+    // the facts are released to the sampler that drew them, even if the
+    // samplers are replaced meanwhile
+    if (evaluationTarget.equals(EvaluationEntry.EVAL_TARGET_RELATION)) {
+      // spread each batch over all extractors of the relation
+      batch = ydb.randomFactsForRelation(sampler, BATCH_SIZE, true);
+    } else {
+      // spread each batch over all relations of the technique
+      batch = ydb.randomFactsForTechnique(sampler, target, BATCH_SIZE, true);
+    }
+
+    for (Fact f : batch) {
+      f.setEvaluationTarget(evaluationTarget);
+      samples.add(new Sample(f, sampler));
+    }
+
+    return samples;
+  }
+
+  private static BlockingQueue<Sample> queueFor(String key) {
+    BlockingQueue<Sample> queue = queues.get(key);
+
+    if (queue == null) {
+      BlockingQueue<Sample> newQueue = new LinkedBlockingQueue<Sample>(QUEUE_CAPACITY);
+      queue = queues.putIfAbsent(key, newQueue);
+      if (queue == null) {
+        queue = newQueue;
+      }
+    }
+
+    return queue;
+  }
+
+  private static String key(String evaluationTarget, String target) {
+    return evaluationTarget + "\t" + target;
+  }
+}
@@ -0,0 +1,230 @@
+package de.mpii.yago.web.evaluation.util;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Samples the facts of one evaluation target without replacement. The
+ * facts are the id intervals of the target in a sorted sampling table
+ * (facts_rel_tech_sorted or facts_tech_rel_sorted). An interval is chosen
+ * proportionally to the number of ids it has left, and within the interval
+ * ids are taken from a lazily generated permutation, so no id is returned
+ * twice and the sampler knows exactly when the target is exhausted.
+ *
+ * Ids that are known to be evaluated are skipped, see EvaluatedFacts.
+ *
+ * Drawn ids stay outstanding until the caller either settles them (the fact
+ * was judged or cannot be served) or releases them (the fact was not used);
+ * released ids are drawn again before new ones. The target is exhausted
+ * only when no id is left to draw and none is outstanding.
+ */
+public class FactSampler {
+
+  private final String table;
+
+  private final int[] first;
+
+  private final int[] remaining;
+
+  // created when an interval is first drawn
+  private final IdPermutation[] permutations;
+
+  // draws intervals by their remaining ids, rebuilt whenever an interval runs out
+  private IntervalSampler intervals;
+
+  private long totalRemaining;
+
+  // ids handed back unused, drawn again before new ones
+  private int[] released = new int[16];
+
+  private int releasedSize = 0;
+
+  // ids drawn and neither settled nor released
+  private final Set<Integer> outstanding = new HashSet<Integer>();
+
+  private final Random random = new Random();
+
+  /**
+   * @param table EvaluatedFacts.RELATION_TABLE or EvaluatedFacts.TECHNIQUE_TABLE
+   * @param first First id of each interval
+   * @param count Number of ids of each interval
+   */
+  public FactSampler(String table, int[] first, int[] count) {
+    this.table = table;
+    this.first = first.clone();
+    this.remaining = count.clone();
+    this.permutations = new IdPermutation[first.length];
+    this.intervals = new IntervalSampler(this.first, remaining);
+    this.totalRemaining = intervals.getTotal();
+  }
+
+  /**
+   * Draws ids that were not drawn before and are not known to be evaluated.
+   *
+   * @return  Up to numberOfIds distinct ids, fewer only if the target is exhausted
+   */
+  public synchronized int[] next(int numberOfIds) {
+    int[] ids = new int[numberOfIds];
+    int size = takeReleased(ids, numberOfIds);
+
+    while (size < numberOfIds && totalRemaining > 0) {
+      int i = intervals.drawInterval(random);
+
+      if (permutations[i] == null) {
+        permutations[i] = new IdPermutation(remaining[i], random);
+      }
+      int id = first[i] + permutations[i].next();
+
+      totalRemaining--;
+      if (--remaining[i] == 0) {
+        intervals = new IntervalSampler(first, remaining);
+      }
+
+      if (!EvaluatedFacts.isEvaluated(table, id)) {
+        ids[size++] = id;
+      }
+    }
+
+    return handOut(ids, size);
+  }
+
+  /**
+   * Draws a batch that is spread over all intervals in proportion to their
+   * remaining ids: every interval gets the integer part of its share, the
+   * rest of the batch goes to intervals by systematic sampling over the
+   * fractional parts, so that small intervals get their share on average.
+   * Ids that are known to be evaluated are skipped and not replaced.
+   * Released ids are taken first, only the rest of the batch is stratified.
+   *
+   * @return  Up to numberOfIds distinct ids
+   */
+  public synchronized int[] nextStratified(int numberOfIds) {
+    int[] ids = new int[numberOfIds];
+    int size = takeReleased(ids, numberOfIds);
+
+    int n = first.length;
+    int batch = (int) Math.min(numberOfIds - size, totalRemaining);
+    if (batch == 0) {
+      return handOut(ids, size);
+    }
+
+    int[] quota = new int[n];
+    double[] fraction = new double[n];
+    int allocated = 0;
+
+    for (int i = 0; i < n; i++) {
+      double share = (double) batch * remaining[i] / totalRemaining;
+      quota[i] = (int) share;
+      fraction[i] = share - quota[i];
+      allocated += quota[i];
+    }
+
+    // the fractions add up to the unallocated part of the batch
+    double position = random.nextDouble();
+    double sum = 0.0;
+    for (int i = 0; i < n && allocated < batch; i++) {
+      sum += fraction[i];
+      if (position < sum && quota[i] < remaining[i]) {
+        quota[i]++;
+        allocated++;
+        position += 1.0;
+      }
+    }
+
+    // seats left over by rounding errors
+    for (int i = 0; i < n && allocated < batch; i++) {
+      int free = Math.min(remaining[i] - quota[i], batch - allocated);
+      quota[i] += free;
+      allocated += free;
+    }
+
+    boolean exhaustedInterval = false;
+
+    for (int i = 0; i < n; i++) {
+      for (int j = 0; j < quota[i]; j++) {
+        if (permutations[i] == null) {
+          permutations[i] = new IdPermutation(remaining[i], random);
+        }
+        int id = first[i] + permutations[i].next();
+
+        totalRemaining--;
+        if (--remaining[i] == 0) {
+          exhaustedInterval = true;
+        }
+
+        if (!EvaluatedFacts.isEvaluated(table, id)) {
+          ids[size++] = id;
+        }
+      }
+    }
+
+    if (exhaustedInterval) {
+      intervals = new IntervalSampler(first, remaining);
+    }
+
+    return handOut(ids, size);
+  }
+
+  /**
+   * Hands an unused id back, it is drawn again. Ids that are not
+   * outstanding are ignored, so releasing twice is harmless.
+   */
+  public synchronized void release(int id) {
+    if (!outstanding.remove(id)) {
+      return;
+    }
+    if (releasedSize == released.length) {
+      released = Arrays.copyOf(released, 2 * releasedSize);
+    }
+    released[releasedSize++] = id;
+  }
+
+  /**
+   * Marks an id as done: its fact was judged or cannot be served.
+   */
+  public synchronized void settle(int id) {
+    outstanding.remove(id);
+  }
+
+  /**
+   * @return  true if every id of the target was drawn and none is outstanding
+   */
+  public synchronized boolean isExhausted() {
+    return totalRemaining == 0 && releasedSize == 0 && outstanding.isEmpty();
+  }
+
+  /**
+   * @return  Number of ids that can still be drawn, new or released
+   */
+  public synchronized long getRemaining() {
+    return totalRemaining + releasedSize;
+  }
+
+  /**
+   * @return  Number of ids drawn and neither settled nor released
+   */
+  public synchronized int getOutstanding() {
+    return outstanding.size();
+  }
+
+  // moves released ids that are not known to be evaluated to the front of ids
+  private int takeReleased(int[] ids, int numberOfIds) {
+    int size = 0;
+    while (size < numberOfIds && releasedSize > 0) {
+      int id = released[--releasedSize];
+      if (!EvaluatedFacts.isEvaluated(table, id)) {
+        ids[size++] = id;
+      }
+    }
+    return size;
+  }
+
+  private int[] handOut(int[] ids, int size) {
+    for (int i = 0; i < size; i++) {
+      outstanding.add(ids[i]);
+    }
+    return size == ids.length ? ids : Arrays.copyOf(ids, size);
+  }
+}
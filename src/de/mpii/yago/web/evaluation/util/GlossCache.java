@@ -0,0 +1,116 @@
+package de.mpii.yago.web.evaluation.util;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Caches the glosses (&lt;hasGloss&gt;) of relations and entities. Relation
+ * glosses are loaded all at once, entity glosses are kept in a size-bounded
+ * LRU map. Entities without a gloss are cached as well.
+ */
+public class GlossCache {
+
+  public static final String HAS_GLOSS = "<hasGloss>";
+
+  /** Maximum number of cached entity glosses */
+  public static final int MAX_ENTITIES = 10000;
+
+  // marks entities without gloss
+  private static final String NO_GLOSS = new String("NO_GLOSS");
+
+  private static volatile Map<String, String> relationGlosses;
+
+  private static final Map<String, String> entityGlosses = new LinkedHashMap<String, String>(1024, 0.75f, true) {
+
+    private static final long serialVersionUID = -4312716359409826021L;
+
+    @Override
+    protected boolean removeEldestEntry(Entry<String, String> eldest) {
+      return size() > MAX_ENTITIES;
+    }
+  };
+
+  /**
+   * Returns the gloss of a relation or entity.
+   * 
+   * @return  The gloss, or null if there is none
+   * @throws SQLException
+   */
+  public static String getGloss(String entity) throws SQLException {
+    String gloss = getRelationGlosses().get(entity);
+    if (gloss != null) {
+      return gloss;
+    }
+
+    synchronized (entityGlosses) {
+      gloss = entityGlosses.get(entity);
+    }
+
+    if (gloss == null) {
+      gloss = YagoDatabase.getArg2(entity, HAS_GLOSS);
+      put(entity, gloss);
+    }
+
+    return gloss == NO_GLOSS ? null : gloss;
+  }
+
+  /**
+   * Loads the glosses of all given entities that are not cached yet, in as
+   * few queries as possible.
+   * 
+   * @throws SQLException
+   */
+  public static void prefetch(Collection<String> entities) throws SQLException {
+    Map<String, String> relations = getRelationGlosses();
+    List<String> missing = new LinkedList<String>();
+
+    synchronized (entityGlosses) {
+      for (String entity : entities) {
+        if (!relations.containsKey(entity) && !entityGlosses.containsKey(entity)) {
+          missing.add(entity);
+        }
+      }
+    }
+
+    if (missing.isEmpty()) {
+      return;
+    }
+
+    Map<String, String> glosses = YagoDatabase.getArg2(missing, HAS_GLOSS);
+
+    for (String entity : missing) {
+      put(entity, glosses.get(entity));
+    }
+  }
+
+  /**
+   * Loads the glosses of all relations, unless this was already done.
+   * 
+   * @throws SQLException
+   */
+  public static Map<String, String> getRelationGlosses() throws SQLException {
+    Map<String, String> glosses = relationGlosses;
+    if (glosses == null) {
+      synchronized (GlossCache.class) {
+        glosses = relationGlosses;
+        if (glosses == null) {
+          glosses = Collections.unmodifiableMap(YagoDatabase.getArg2ForRelations(HAS_GLOSS));
+          relationGlosses = glosses;
+        }
+      }
+    }
+    return glosses;
+  }
+
+  private static void put(String entity, String gloss) {
+    synchronized (entityGlosses) {
+      entityGlosses.put(entity, gloss == null ? NO_GLOSS : gloss);
+    }
+  }
+}
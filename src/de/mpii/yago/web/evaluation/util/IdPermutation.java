@@ -0,0 +1,72 @@
+package de.mpii.yago.web.evaluation.util;
+
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * A pseudo-random permutation of 0..size-1 that is generated lazily, one
+ * element at a time, in constant memory. Uses a full-period linear
+ * congruential generator modulo the next power of two and skips values
+ * outside the range (cycle walking), so every value is returned exactly once.
+ */
+public class IdPermutation {
+
+  private final int size;
+
+  private final long mask;
+
+  private final long multiplier;
+
+  private final long increment;
+
+  private long state;
+
+  private int drawn = 0;
+
+  public IdPermutation(int size, Random random) {
+    if (size < 0) {
+      throw new IllegalArgumentException("negative size " + size);
+    }
+
+    this.size = size;
+
+    long modulus = Long.highestOneBit(Math.max(size, 1));
+    if (modulus < size) {
+      modulus <<= 1;
+    }
+    mask = modulus - 1;
+
+    // full period modulo 2^k: odd increment, multiplier = 1 mod 4
+    multiplier = ((random.nextLong() & mask) & ~3L) | 1L;
+    increment = (random.nextLong() & mask) | 1L;
+    state = random.nextLong() & mask;
+  }
+
+  public boolean hasNext() {
+    return drawn < size;
+  }
+
+  /**
+   * @return  The next value of the permutation
+   */
+  public int next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+
+    // the modulus is less than twice the size, so this takes < 2 steps on average
+    do {
+      state = (multiplier * state + increment) & mask;
+    } while (state >= size);
+
+    drawn++;
+    return (int) state;
+  }
+
+  /**
+   * @return  Number of values not returned yet
+   */
+  public int getRemaining() {
+    return size - drawn;
+  }
+}
@@ -0,0 +1,126 @@
+package de.mpii.yago.web.evaluation.util;
+
+import java.util.Random;
+
+/**
+ * Draws one of a fixed set of id intervals with probability proportional to
+ * its size in O(1), using Vose's alias method. The intervals are the
+ * (first, count) rows of a meta table such as facts_rel_tech_meta, kept in
+ * primitive arrays.
+ */
+public class IntervalSampler {
+
+  private final int[] first;
+
+  private final int[] count;
+
+  private final long total;
+
+  // alias table: interval i is kept with probability prob[i], otherwise alias[i] is taken
+  private final double[] prob;
+
+  private final int[] alias;
+
+  /**
+   * @param first First id of each interval
+   * @param count Number of ids of each interval
+   */
+  public IntervalSampler(int[] first, int[] count) {
+    if (first.length != count.length) {
+      throw new IllegalArgumentException("first and count differ in length");
+    }
+
+    int n = first.length;
+    this.first = first.clone();
+    this.count = count.clone();
+
+    long sum = 0;
+    for (int c : count) {
+      if (c < 0) {
+        throw new IllegalArgumentException("negative interval size " + c);
+      }
+      sum += c;
+    }
+    total = sum;
+
+    prob = new double[n];
+    alias = new int[n];
+
+    if (total == 0) {
+      return;
+    }
+
+    // scaled probabilities, split into work lists of small (< 1) and large ones
+    double[] scaled = new double[n];
+    int[] small = new int[n];
+    int[] large = new int[n];
+    int smallSize = 0;
+    int largeSize = 0;
+
+    for (int i = 0; i < n; i++) {
+      scaled[i] = (double) count[i] * n / total;
+      if (scaled[i] < 1.0) {
+        small[smallSize++] = i;
+      } else {
+        large[largeSize++] = i;
+      }
+    }
+
+    while (smallSize > 0 && largeSize > 0) {
+      int s = small[--smallSize];
+      int l = large[--largeSize];
+
+      prob[s] = scaled[s];
+      alias[s] = l;
+
+      scaled[l] = (scaled[l] + scaled[s]) - 1.0;
+      if (scaled[l] < 1.0) {
+        small[smallSize++] = l;
+      } else {
+        large[largeSize++] = l;
+      }
+    }
+
+    // what is left over is 1.0 up to rounding errors
+    while (largeSize > 0) {
+      prob[large[--largeSize]] = 1.0;
+    }
+    while (smallSize > 0) {
+      prob[small[--smallSize]] = 1.0;
+    }
+  }
+
+  /**
+   * @return  Number of intervals
+   */
+  public int size() {
+    return first.length;
+  }
+
+  /**
+   * @return  Number of ids in all intervals
+   */
+  public long getTotal() {
+    return total;
+  }
+
+  public int getFirst(int interval) {
+    return first[interval];
+  }
+
+  public int getCount(int interval) {
+    return count[interval];
+  }
+
+  /**
+   * @return  The index of an interval, drawn proportionally to its size, or -1 if all intervals are empty
+   */
+  public int drawInterval(Random random) {
+    if (total == 0) {
+      return -1;
+    }
+
+    int i = random.nextInt(prob.length);
+    return random.nextDouble() < prob[i] ? i : alias[i];
+  }
+}
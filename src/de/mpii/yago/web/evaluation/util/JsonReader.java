@@ -0,0 +1,291 @@
+package de.mpii.yago.web.evaluation.util;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Minimal streaming (pull) parser for JSON. Reads one token at a time from
+ * the underlying reader, nothing is buffered beyond the current token.
+ *
+ * Usage follows the structure of the document: beginObject(), then
+ * hasNext()/nextName() and a value method for each member, endObject().
+ */
+public class JsonReader {
+
+  public enum Token {
+    BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+  };
+
+  private final Reader in;
+
+  // one character of lookahead, -2 if none is buffered
+  private int buffered = -2;
+
+  private Token peeked;
+
+  // stack of open containers: objects[d] is set if container d is an object,
+  // expectName[d] if that object waits for the name of its next member
+  private boolean[] objects = new boolean[32];
+
+  private boolean[] expectName = new boolean[32];
+
+  private int depth = 0;
+
+  public JsonReader(Reader in) {
+    this.in = in;
+  }
+
+  public Token peek() throws IOException {
+    if (peeked == null) {
+      peeked = readToken();
+    }
+    return peeked;
+  }
+
+  public void beginObject() throws IOException {
+    expect(Token.BEGIN_OBJECT);
+  }
+
+  public void endObject() throws IOException {
+    expect(Token.END_OBJECT);
+  }
+
+  public void beginArray() throws IOException {
+    expect(Token.BEGIN_ARRAY);
+  }
+
+  public void endArray() throws IOException {
+    expect(Token.END_ARRAY);
+  }
+
+  /**
+   * @return  true if the current object or array has more elements
+   */
+  public boolean hasNext() throws IOException {
+    Token t = peek();
+    return t != Token.END_OBJECT && t != Token.END_ARRAY && t != Token.END_DOCUMENT;
+  }
+
+  public String nextName() throws IOException {
+    expect(Token.NAME);
+    return readString();
+  }
+
+  /**
+   * Returns a string, number or boolean value as string, null for null
+   */
+  public String nextString() throws IOException {
+    Token t = peek();
+    peeked = null;
+    switch (t) {
+      case STRING:
+        return readString();
+      case NUMBER:
+      case BOOLEAN:
+        return readLiteral();
+      case NULL:
+        readLiteral();
+        return null;
+      default:
+        throw new IOException("Expected a value but was " + t);
+    }
+  }
+
+  /**
+   * Skips the next value, including nested objects and arrays
+   */
+  public void skipValue() throws IOException {
+    int level = 0;
+    do {
+      Token t = peek();
+      switch (t) {
+        case BEGIN_OBJECT:
+        case BEGIN_ARRAY:
+          peeked = null;
+          level++;
+          break;
+        case END_OBJECT:
+        case END_ARRAY:
+          peeked = null;
+          level--;
+          break;
+        case NAME:
+          nextName();
+          break;
+        case END_DOCUMENT:
+          return;
+        default:
+          nextString();
+          break;
+      }
+    } while (level > 0);
+  }
+
+  private void expect(Token expected) throws IOException {
+    Token t = peek();
+    if (t != expected) {
+      throw new IOException("Expected " + expected + " but was " + t);
+    }
+    peeked = null;
+  }
+
+  private Token readToken() throws IOException {
+    int c = nextNonWhitespace();
+
+    // separators carry no information, names are tracked per container
+    while (c == ',' || c == ':') {
+      c = nextNonWhitespace();
+    }
+
+    switch (c) {
+      case -1:
+        return Token.END_DOCUMENT;
+      case '{':
+        push(true);
+        return Token.BEGIN_OBJECT;
+      case '}':
+        depth--;
+        afterValue();
+        return Token.END_OBJECT;
+      case '[':
+        push(false);
+        return Token.BEGIN_ARRAY;
+      case ']':
+        depth--;
+        afterValue();
+        return Token.END_ARRAY;
+      case '"':
+        if (depth > 0 && isObject() && expectName[depth]) {
+          expectName[depth] = false;
+          return Token.NAME;
+        }
+        afterValue();
+        return Token.STRING;
+      case 't':
+      case 'f':
+        unread(c);
+        afterValue();
+        return Token.BOOLEAN;
+      case 'n':
+        unread(c);
+        afterValue();
+        return Token.NULL;
+      default:
+        if (c == '-' || (c >= '0' && c <= '9')) {
+          unread(c);
+          afterValue();
+          return Token.NUMBER;
+        }
+        throw new IOException("Unexpected character '" + (char) c + "'");
+    }
+  }
+
+  private void push(boolean object) {
+    afterValue();
+    depth++;
+    if (depth >= objects.length) {
+      boolean[] newObjects = new boolean[depth * 2];
+      System.arraycopy(objects, 0, newObjects, 0, objects.length);
+      objects = newObjects;
+      boolean[] newExpectName = new boolean[depth * 2];
+      System.arraycopy(expectName, 0, newExpectName, 0, expectName.length);
+      expectName = newExpectName;
+    }
+    objects[depth] = object;
+    expectName[depth] = object;
+  }
+
+  private boolean isObject() {
+    return objects[depth];
+  }
+
+  // after a value inside an object, the next string is a name again
+  private void afterValue() {
+    if (depth > 0 && objects[depth]) {
+      expectName[depth] = true;
+    }
+  }
+
+  private String readString() throws IOException {
+    StringBuilder sb = new StringBuilder();
+    while (true) {
+      int c = read();
+      switch (c) {
+        case -1:
+          throw new IOException("Unterminated string");
+        case '"':
+          return sb.toString();
+        case '\\':
+          c = read();
+          switch (c) {
+            case 'b':
+              sb.append('\b');
+              break;
+            case 'f':
+              sb.append('\f');
+              break;
+            case 'n':
+              sb.append('\n');
+              break;
+            case 'r':
+              sb.append('\r');
+              break;
+            case 't':
+              sb.append('\t');
+              break;
+            case 'u':
+              char[] hex = new char[4];
+              for (int i = 0; i < 4; i++) {
+                hex[i] = (char) read();
+              }
+              try {
+                sb.append((char) Integer.parseInt(new String(hex), 16));
+              } catch (NumberFormatException e) {
+                throw new IOException("Invalid escape \\u" + new String(hex));
+              }
+              break;
+            case -1:
+              throw new IOException("Unterminated string");
+            default:
+              sb.append((char) c);
+          }
+          break;
+        default:
+          sb.append((char) c);
+      }
+    }
+  }
+
+  private String readLiteral() throws IOException {
+    StringBuilder sb = new StringBuilder();
+    while (true) {
+      int c = read();
+      if (c == -1 || c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) {
+        unread(c);
+        return sb.toString();
+      }
+      sb.append((char) c);
+    }
+  }
+
+  private int nextNonWhitespace() throws IOException {
+    int c = read();
+    while (c != -1 && Character.isWhitespace(c)) {
+      c = read();
+    }
+    return c;
+  }
+
+  private int read() throws IOException {
+    if (buffered != -2) {
+      int c = buffered;
+      buffered = -2;
+      return c;
+    }
+    return in.read();
+  }
+
+  private void unread(int c) {
+    buffered = c;
+  }
+}
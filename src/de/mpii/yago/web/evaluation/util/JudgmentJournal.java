@@ -0,0 +1,539 @@
+package de.mpii.yago.web.evaluation.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.mpii.yago.web.evaluation.model.EvaluationForm;
+
+/**
+ * Write-behind journal of submitted evaluation forms. A form is acknowledged
+ * as soon as it is appended to an append-only file and forced to disk. A
+ * background committer stores the journaled forms in the evaluation table,
+ * all forms pending at that time in one transaction (group commit). While
+ * the database is unavailable the committer retries, the forms stay in the
+ * journal meanwhile. If a group fails for another reason, its forms are
+ * stored one at a time, and a form that still fails is moved to a dead
+ * letter file (judgments.deadletter) so it does not hold back the others.
+ *
+ * A checkpoint file holds the sequence number of the last stored form, the
+ * forms after it are replayed on startup. Storing a form twice is harmless
+ * (see YagoDatabase.storeFactEvaluations), so a crash between storing and
+ * writing the checkpoint does not duplicate evaluations.
+ *
+ * The directory of the journal is set with JOURNAL_DIR in db_settings.properties.
+ */
+public class JudgmentJournal {
+
+  /** Maximum number of forms stored in one transaction */
+  public static final int MAX_GROUP_SIZE = 500;
+
+  /** The journal is emptied once all its forms are stored and it is larger than this */
+  public static final long MAX_JOURNAL_SIZE = 1024 * 1024;
+
+  /** Wait before storing is retried after a database error, doubled up to MAX_RETRY_DELAY */
+  public static final long MIN_RETRY_DELAY = 1000;
+
+  public static final long MAX_RETRY_DELAY = 60 * 1000;
+
+  private static final String JOURNAL_FILE = "judgments.journal";
+
+  private static final String CHECKPOINT_FILE = "judgments.checkpoint";
+
+  private static final String DEAD_LETTER_FILE = "judgments.deadletter";
+
+  /** SQLState class of connection errors, storing is retried after these */
+  private static final String CONNECTION_EXCEPTION_CLASS = "08";
+
+  private static Logger logger = LoggerFactory.getLogger(JudgmentJournal.class);
+
+  /** A journaled form with its sequence number */
+  private static class JournalEntry {
+
+    final long sequence;
+
+    final EvaluationForm form;
+
+    JournalEntry(long sequence, EvaluationForm form) {
+      this.sequence = sequence;
+      this.form = form;
+    }
+  }
+
+  // journaled forms that are not stored yet, in the order of the journal
+  private static final BlockingQueue<JournalEntry> pending = new LinkedBlockingQueue<JournalEntry>();
+
+  // the following are guarded by JudgmentJournal.class
+  private static File dir;
+
+  private static FileOutputStream journal;
+
+  private static long lastSequence = 0;
+
+  private static Thread committer;
+
+  // written by the committer only
+  private static volatile long storedSequence = 0;
+
+  private static volatile boolean running = false;
+
+  /**
+   * Opens the journal, replays the forms that were not stored yet and starts
+   * the committer. Needs the database connection.
+   */
+  public static synchronized void open() throws IOException {
+    if (journal != null) {
+      return;
+    }
+
+    dir = new File(YagoDatabase.getProperty("JOURNAL_DIR", new File(System.getProperty("java.io.tmpdir"), "yagowebeval-journal").getPath()));
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Could not create journal directory " + dir);
+    }
+
+    storedSequence = readCheckpoint();
+    lastSequence = storedSequence;
+
+    List<JournalEntry> unstored = new ArrayList<JournalEntry>();
+    for (JournalEntry entry : read()) {
+      lastSequence = Math.max(lastSequence, entry.sequence);
+      if (entry.sequence > storedSequence) {
+        unstored.add(entry);
+      }
+    }
+
+    journal = new FileOutputStream(new File(dir, JOURNAL_FILE), true);
+
+    for (JournalEntry entry : unstored) {
+      enqueue(entry);
+    }
+    if (!unstored.isEmpty()) {
+      logger.info("Replaying " + unstored.size() + " journaled evaluation forms");
+    }
+
+    running = true;
+    committer = new Thread(new Runnable() {
+
+      @Override
+      public void run() {
+        commitLoop();
+      }
+    }, "judgment-committer");
+    committer.setDaemon(true);
+    committer.start();
+  }
+
+  /**
+   * Stops the committer and closes the journal. Forms that are not stored
+   * yet are replayed when the journal is opened again.
+   */
+  public static void shutdown() {
+    Thread t;
+    synchronized (JudgmentJournal.class) {
+      running = false;
+      t = committer;
+      committer = null;
+    }
+
+    if (t != null) {
+      t.interrupt();
+      try {
+        t.join(10000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    synchronized (JudgmentJournal.class) {
+      if (journal != null) {
+        try {
+          journal.close();
+        } catch (IOException e) {
+          logger.warn("Could not close journal: " + e);
+        }
+        journal = null;
+      }
+      // still in the journal
+      pending.clear();
+    }
+  }
+
+  /**
+   * Appends a form to the journal and forces it to disk, the committer
+   * stores it in the database later.
+   *
+   * @return  false if the journal is not open, the form was not journaled then
+   */
+  public static boolean append(EvaluationForm form) throws IOException {
+    synchronized (JudgmentJournal.class) {
+      if (journal == null) {
+        return false;
+      }
+
+      JournalEntry entry = new JournalEntry(lastSequence + 1, form);
+      long size = journal.getChannel().size();
+      try {
+        journal.write(encode(entry));
+        journal.getChannel().force(false);
+      } catch (IOException e) {
+        // do not leave a partial line that the next entry would be appended to
+        try {
+          journal.getChannel().truncate(size);
+        } catch (IOException ignored) {
+        }
+        throw e;
+      }
+      lastSequence = entry.sequence;
+
+      enqueue(entry);
+    }
+    return true;
+  }
+
+  /**
+   * @return  Number of journaled forms that are not stored yet
+   */
+  public static int getPendingCount() {
+    return pending.size();
+  }
+
+  private static void enqueue(JournalEntry entry) {
+    pending.add(entry);
+    // not to be sampled again before it is stored
+    for (String factId : entry.form.getResults().keySet()) {
+      EvaluatedFacts.add(factId);
+    }
+  }
+
+  private static void commitLoop() {
+    List<JournalEntry> group = new ArrayList<JournalEntry>();
+    long delay = MIN_RETRY_DELAY;
+
+    while (running) {
+      try {
+        if (group.isEmpty()) {
+          group.add(pending.take());
+          pending.drainTo(group, MAX_GROUP_SIZE - 1);
+        }
+
+        try {
+          store(group);
+        } catch (Exception e) {
+          if (isTransient(e)) {
+            throw e;
+          }
+          logger.warn("Could not store " + group.size() + " journaled evaluation forms, storing them one at a time: " + e);
+          storeSingly(group);
+        }
+        group.clear();
+        delay = MIN_RETRY_DELAY;
+      } catch (InterruptedException e) {
+        break;
+      } catch (Exception e) {
+        logger.warn("Could not store " + group.size() + " journaled evaluation forms, retrying in " + delay + " ms: " + e);
+        try {
+          Thread.sleep(delay);
+        } catch (InterruptedException ie) {
+          break;
+        }
+        delay = Math.min(2 * delay, MAX_RETRY_DELAY);
+      }
+    }
+  }
+
+  /**
+   * Stores the forms of a group one by one, so a form that cannot be stored
+   * does not hold back the others. Such a form is moved to the dead letter
+   * file. Stored and parked forms are removed from the group.
+   *
+   * @throws Exception  On a transient error, the rest of the group is retried later
+   */
+  private static void storeSingly(List<JournalEntry> group) throws Exception {
+    Iterator<JournalEntry> entries = group.iterator();
+    while (entries.hasNext()) {
+      JournalEntry entry = entries.next();
+      try {
+        store(Collections.singletonList(entry));
+      } catch (Exception e) {
+        if (isTransient(e)) {
+          throw e;
+        }
+        park(entry, e);
+        checkpoint(entry.sequence);
+      }
+      entries.remove();
+    }
+  }
+
+  private static void store(List<JournalEntry> group) throws Exception {
+    List<EvaluationForm> forms = new ArrayList<EvaluationForm>(group.size());
+    for (JournalEntry entry : group) {
+      forms.add(entry.form);
+    }
+
+    YagoDatabase.getInstance().storeFactEvaluations(forms);
+
+    checkpoint(group.get(group.size() - 1).sequence);
+  }
+
+  private static void checkpoint(long sequence) {
+    storedSequence = sequence;
+    try {
+      writeCheckpoint(storedSequence);
+      truncateIfStored();
+    } catch (IOException e) {
+      // the forms are stored again after a restart, which is harmless
+      logger.warn("Could not write journal checkpoint: " + e);
+    }
+  }
+
+  /**
+   * Appends a form that cannot be stored to the dead letter file, in the
+   * format of the journal.
+   */
+  private static void park(JournalEntry entry, Exception cause) {
+    File file = new File(dir, DEAD_LETTER_FILE);
+    try {
+      byte[] line = encode(entry);
+      FileOutputStream out = new FileOutputStream(file, true);
+      try {
+        out.write(line);
+        out.getFD().sync();
+      } finally {
+        out.close();
+      }
+      logger.error("Could not store journaled evaluation form " + entry.sequence + " of user '" + entry.form.getUser() + "', moved it to " + file + ": " + cause);
+    } catch (IOException e) {
+      logger.error("Could not store journaled evaluation form " + entry.sequence + " of user '" + entry.form.getUser() + "' (" + cause + ") nor move it to " + file + ", dropping it: "
+          + e + ", results: " + entry.form.getResults());
+    }
+  }
+
+  /**
+   * @return  true if the error is one that goes away by itself, such as a
+   *          lost connection, so storing the same forms again may succeed
+   */
+  private static boolean isTransient(Throwable e) {
+    for (Throwable t = e; t != null; t = t.getCause()) {
+      if (t instanceof SQLTransientException || t instanceof SQLRecoverableException || t instanceof IOException) {
+        return true;
+      }
+      if (t instanceof SQLException) {
+        // the batch errors of the driver are chained as next exceptions
+        for (SQLException s = (SQLException) t; s != null; s = s.getNextException()) {
+          if (s.getSQLState() != null && s.getSQLState().startsWith(CONNECTION_EXCEPTION_CLASS)) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  private static synchronized void truncateIfStored() throws IOException {
+    if (journal != null && storedSequence == lastSequence && journal.getChannel().size() > MAX_JOURNAL_SIZE) {
+      journal.getChannel().truncate(0);
+      journal.getChannel().force(true);
+    }
+  }
+
+  private static long readCheckpoint() throws IOException {
+    File file = new File(dir, CHECKPOINT_FILE);
+    if (!file.exists()) {
+      return 0;
+    }
+
+    byte[] content = readFully(file);
+    try {
+      return Long.parseLong(new String(content, "UTF-8").trim());
+    } catch (NumberFormatException e) {
+      throw new IOException("Corrupt journal checkpoint " + file + ": " + e);
+    }
+  }
+
+  private static void writeCheckpoint(long sequence) throws IOException {
+    File file = new File(dir, CHECKPOINT_FILE);
+    File tmp = new File(dir, CHECKPOINT_FILE + ".tmp");
+
+    FileOutputStream out = new FileOutputStream(tmp);
+    try {
+      out.write((Long.toString(sequence) + "\n").getBytes("UTF-8"));
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+
+    if (!tmp.renameTo(file)) {
+      file.delete();
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Could not replace " + file);
+      }
+    }
+  }
+
+  /**
+   * Reads all entries of the journal. A damaged tail, as left by a crash
+   * during an append, is cut off.
+   */
+  private static List<JournalEntry> read() throws IOException {
+    List<JournalEntry> entries = new ArrayList<JournalEntry>();
+    File file = new File(dir, JOURNAL_FILE);
+    if (!file.exists()) {
+      return entries;
+    }
+
+    long validLength = 0;
+    long length = 0;
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+    InputStream in = new BufferedInputStream(new FileInputStream(file));
+    try {
+      int b;
+      while ((b = in.read()) != -1) {
+        length++;
+        if (b != '\n') {
+          line.write(b);
+          continue;
+        }
+
+        JournalEntry entry = decode(line.toByteArray());
+        if (entry == null) {
+          break;
+        }
+        entries.add(entry);
+        validLength = length;
+        line.reset();
+      }
+    } finally {
+      in.close();
+    }
+
+    if (validLength < file.length()) {
+      logger.warn("Cutting off damaged journal tail of " + (file.length() - validLength) + " bytes");
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        raf.getChannel().truncate(validLength);
+        raf.getChannel().force(true);
+      } finally {
+        raf.close();
+      }
+    }
+
+    return entries;
+  }
+
+  /**
+   * One line per form: checksum, sequence, time, target, user, then fact id
+   * and result of each fact. The checksum covers the rest of the line.
+   */
+  private static byte[] encode(JournalEntry entry) throws IOException {
+    EvaluationForm form = entry.form;
+
+    StringBuilder record = new StringBuilder();
+    record.append(entry.sequence).append('\t').append(form.getTime().getTime());
+    record.append('\t').append(escape(form.getTarget())).append('\t').append(escape(form.getUser()));
+    for (Map.Entry<String, String> result : form.getResults().entrySet()) {
+      record.append('\t').append(escape(result.getKey())).append('\t').append(escape(result.getValue()));
+    }
+
+    byte[] bytes = record.toString().getBytes("UTF-8");
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+
+    ByteArrayOutputStream line = new ByteArrayOutputStream(bytes.length + 10);
+    line.write(Long.toHexString(crc.getValue()).getBytes("UTF-8"));
+    line.write('\t');
+    line.write(bytes);
+    line.write('\n');
+    return line.toByteArray();
+  }
+
+  /**
+   * @return  The entry, or null if the line is damaged
+   */
+  private static JournalEntry decode(byte[] line) throws IOException {
+    int tab = 0;
+    while (tab < line.length && line[tab] != '\t') {
+      tab++;
+    }
+    if (tab == line.length) {
+      return null;
+    }
+
+    CRC32 crc = new CRC32();
+    crc.update(line, tab + 1, line.length - tab - 1);
+    if (!Long.toHexString(crc.getValue()).equals(new String(line, 0, tab, "UTF-8"))) {
+      return null;
+    }
+
+    String[] fields = new String(line, tab + 1, line.length - tab - 1, "UTF-8").split("\t", -1);
+    if (fields.length < 4 || fields.length % 2 != 0) {
+      return null;
+    }
+
+    try {
+      Map<String, String> results = new LinkedHashMap<String, String>();
+      for (int i = 4; i < fields.length; i += 2) {
+        results.put(unescape(fields[i]), unescape(fields[i + 1]));
+      }
+      EvaluationForm form = new EvaluationForm(new Date(Long.parseLong(fields[1])), unescape(fields[2]), unescape(fields[3]), results);
+      return new JournalEntry(Long.parseLong(fields[0]), form);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private static byte[] readFully(File file) throws IOException {
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] buffer = new byte[4096];
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        content.write(buffer, 0, n);
+      }
+    } finally {
+      in.close();
+    }
+    return content.toByteArray();
+  }
+
+  private static String escape(String s) {
+    return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+  }
+
+  private static String unescape(String s) {
+    StringBuilder result = new StringBuilder(s.length());
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '\\' && i + 1 < s.length()) {
+        char next = s.charAt(++i);
+        result.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+      } else {
+        result.append(c);
+      }
+    }
+    return result.toString();
+  }
+}
@@ -0,0 +1,50 @@
+package de.mpii.yago.web.evaluation.util;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the domain and range of all relations, loaded in
+ * one pass over the rdfs:domain and rdfs:range facts. Shared by all
+ * threads, see YagoDatabase.getSchema().
+ */
+public class RelationSchema {
+
+  /** Returned for relations without domain or range */
+  public static final String NONE = "NONE";
+
+  private final Map<String, String> domains;
+
+  private final Map<String, String> ranges;
+
+  private final String metaDomain;
+
+  /**
+   * @param domains Domain by relation
+   * @param ranges  Range by relation
+   * @param metaDomain  Domain of meta relations (relations about facts)
+   */
+  public RelationSchema(Map<String, String> domains, Map<String, String> ranges, String metaDomain) {
+    this.domains = Collections.unmodifiableMap(new HashMap<String, String>(domains));
+    this.ranges = Collections.unmodifiableMap(new HashMap<String, String>(ranges));
+    this.metaDomain = metaDomain;
+  }
+
+  public String getDomain(String relation) {
+    String domain = domains.get(relation);
+    return domain == null ? NONE : domain;
+  }
+
+  public String getRange(String relation) {
+    String range = ranges.get(relation);
+    return range == null ? NONE : range;
+  }
+
+  /**
+   * @return  true if the relation has facts as its subject
+   */
+  public boolean isMetaRelation(String relation) {
+    return metaDomain.equals(domains.get(relation));
+  }
+}
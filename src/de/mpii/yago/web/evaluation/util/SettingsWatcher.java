@@ -0,0 +1,86 @@
+package de.mpii.yago.web.evaluation.util;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checks the evaluation_settings table periodically and refreshes the
+ * settings and everything that depends on them once it changed, see
+ * YagoDatabase.refreshSettings. So excluding a relation or technique takes
+ * effect without a restart.
+ *
+ * The interval in seconds is set with SETTINGS_CHECK_INTERVAL in
+ * db_settings.properties, 0 disables the check.
+ */
+public class SettingsWatcher {
+
+  /** Seconds between two checks, unless set in the properties */
+  public static final int DEFAULT_CHECK_INTERVAL = 60;
+
+  private static Logger logger = LoggerFactory.getLogger(SettingsWatcher.class);
+
+  // guarded by SettingsWatcher.class
+  private static ScheduledExecutorService watcher;
+
+  public static synchronized void start() {
+    if (watcher != null) {
+      return;
+    }
+
+    long interval = checkInterval();
+    if (interval <= 0) {
+      return;
+    }
+
+    watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "settings-watcher");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+
+    watcher.scheduleWithFixedDelay(new Runnable() {
+
+      @Override
+      public void run() {
+        try {
+          YagoDatabase.refreshSettingsIfChanged();
+        } catch (Exception e) {
+          // keep checking, a failed check must not end the schedule
+          logger.warn("Could not check the evaluation settings: " + e);
+        }
+      }
+    }, interval, interval, TimeUnit.SECONDS);
+  }
+
+  public static synchronized void shutdown() {
+    if (watcher == null) {
+      return;
+    }
+
+    watcher.shutdownNow();
+    try {
+      watcher.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    watcher = null;
+  }
+
+  private static long checkInterval() {
+    String interval = YagoDatabase.getProperty("SETTINGS_CHECK_INTERVAL", Integer.toString(DEFAULT_CHECK_INTERVAL));
+    try {
+      return Long.parseLong(interval.trim());
+    } catch (NumberFormatException e) {
+      return DEFAULT_CHECK_INTERVAL;
+    }
+  }
+}
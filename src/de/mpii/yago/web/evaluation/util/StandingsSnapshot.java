@@ -0,0 +1,221 @@
+package de.mpii.yago.web.evaluation.util;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.mpii.yago.web.evaluation.model.EvaluationEntry;
+import de.mpii.yago.web.evaluation.model.StandingsRow;
+
+/**
+ * Immutable snapshot of everything the standings page shows. The snapshot
+ * is recomputed only after new judgments were stored, and then at most once
+ * per refresh interval, so that pages polled by many browsers do not scan
+ * the evaluation table on every request. Its version changes with every
+ * recomputation and serves as ETag.
+ *
+ * The refresh interval in seconds is set with STANDINGS_REFRESH_INTERVAL in
+ * db_settings.properties.
+ */
+public class StandingsSnapshot {
+
+  /** Minimum seconds between two recomputations, unless set in the properties */
+  public static final int DEFAULT_REFRESH_INTERVAL = 10;
+
+  private static Logger logger = LoggerFactory.getLogger(StandingsSnapshot.class);
+
+  // distinguishes the versions of different runs of the application
+  private static final long EPOCH = System.currentTimeMillis();
+
+  // incremented whenever the standings might have changed
+  private static final AtomicLong changes = new AtomicLong();
+
+  private static volatile StandingsSnapshot current;
+
+  // no recomputation is tried before this time after one failed
+  private static volatile long retryAt = 0;
+
+  private final long version;
+
+  private final long time;
+
+  private final List<StandingsRow> relationStandings;
+
+  private final List<StandingsRow> techniqueStandings;
+
+  private final List<Map<String, Object>> userEvaluations;
+
+  private final List<Map<String, Object>> pairAgreements;
+
+  private final int numberEval;
+
+  private final double correctFraction;
+
+  private final double[] averageWilson;
+
+  private final double[] agreementAndKappa;
+
+  private final double[] totalDoubleFactsAndProgress;
+
+  /**
+   * Marks the current snapshot as outdated, it is recomputed once the
+   * refresh interval has passed
+   */
+  public static void invalidate() {
+    changes.incrementAndGet();
+  }
+
+  /**
+   * Returns the current snapshot, recomputing it if it is outdated and
+   * older than the refresh interval. If the recomputation fails, the
+   * previous snapshot is returned and the recomputation is tried again
+   * after the refresh interval.
+   *
+   * @throws SQLException  If there is no previous snapshot
+   * @throws IOException  If there is no previous snapshot
+   */
+  public static StandingsSnapshot get() throws SQLException, IOException {
+    StandingsSnapshot snapshot = current;
+    if (snapshot != null && (!snapshot.needsRefresh() || System.currentTimeMillis() < retryAt)) {
+      return snapshot;
+    }
+
+    synchronized (StandingsSnapshot.class) {
+      snapshot = current;
+      if (snapshot == null || (snapshot.needsRefresh() && System.currentTimeMillis() >= retryAt)) {
+        try {
+          snapshot = new StandingsSnapshot(YagoDatabase.getInstance(), changes.get());
+          current = snapshot;
+        } catch (SQLException e) {
+          if (snapshot == null) {
+            throw e;
+          }
+          failed(snapshot, e);
+        } catch (IOException e) {
+          if (snapshot == null) {
+            throw e;
+          }
+          failed(snapshot, e);
+        }
+      }
+    }
+    return snapshot;
+  }
+
+  private static void failed(StandingsSnapshot previous, Exception e) {
+    retryAt = System.currentTimeMillis() + refreshInterval();
+    logger.warn("Could not recompute standings, keeping version " + previous.version + ": " + e);
+  }
+
+  private StandingsSnapshot(YagoDatabase ydb, long version) throws SQLException, IOException {
+    long start = System.currentTimeMillis();
+
+    this.version = version;
+    this.time = start;
+
+    EvaluationStore.ensureLoaded();
+
+    relationStandings = Collections.unmodifiableList(EvaluationStore.getStandings(EvaluationEntry.EVAL_TARGET_RELATION));
+    techniqueStandings = Collections.unmodifiableList(EvaluationStore.getStandings(EvaluationEntry.EVAL_TARGET_TECHNIQUE));
+
+    List<Map<String, Object>> users = new ArrayList<Map<String, Object>>();
+    for (Map<String, Object> user : ydb.getUserEvaluationNumbers()) {
+      users.add(user);
+    }
+    userEvaluations = Collections.unmodifiableList(users);
+    pairAgreements = Collections.unmodifiableList(ydb.getPairAgreements());
+
+    numberEval = EvaluationStore.size();
+    correctFraction = (double) EvaluationStore.countCorrect() * 100 / numberEval;
+
+    averageWilson = averageWilson(relationStandings);
+    agreementAndKappa = ydb.getAgreementAndKappa();
+    totalDoubleFactsAndProgress = ydb.getTwiceEvaluatedFactsTotalAndProgress();
+
+    logger.info("Computed standings version " + version + " in " + (System.currentTimeMillis() - start) + " ms");
+  }
+
+  private boolean needsRefresh() {
+    return version != changes.get() && System.currentTimeMillis() - time >= refreshInterval();
+  }
+
+  private static long refreshInterval() {
+    String interval = YagoDatabase.getProperty("STANDINGS_REFRESH_INTERVAL", Integer.toString(DEFAULT_REFRESH_INTERVAL));
+    try {
+      return Long.parseLong(interval.trim()) * 1000;
+    } catch (NumberFormatException e) {
+      return DEFAULT_REFRESH_INTERVAL * 1000L;
+    }
+  }
+
+  private static double[] averageWilson(List<StandingsRow> poolStanding) {
+    double totalCenter = 0.0;
+    double totalWidth = 0.0;
+
+    int totalNumber = 0;
+
+    for (StandingsRow relationStanding : poolStanding) {
+      int number = relationStanding.getEvaluations();
+
+      totalCenter += relationStanding.getWilsonCenter() * number;
+      totalWidth += relationStanding.getWilsonWidth() * number;
+
+      totalNumber += number;
+    }
+
+    double averageCenter = totalCenter / totalNumber;
+    double averageWidth = totalWidth / totalNumber;
+
+    return new double[] { averageCenter, averageWidth };
+  }
+
+  /**
+   * @return  The entity tag of this snapshot, for conditional requests
+   */
+  public String getETag() {
+    return "\"standings-" + EPOCH + "-" + version + "\"";
+  }
+
+  /**
+   * @param evaluationTarget  EvaluationEntry.EVAL_TARGET_RELATION or EvaluationEntry.EVAL_TARGET_TECHNIQUE
+   * @return  The standings of the targets, not to be modified
+   */
+  public List<StandingsRow> getStandings(String evaluationTarget) {
+    return evaluationTarget.equals(EvaluationEntry.EVAL_TARGET_RELATION) ? relationStandings : techniqueStandings;
+  }
+
+  public List<Map<String, Object>> getUserEvaluations() {
+    return userEvaluations;
+  }
+
+  public List<Map<String, Object>> getPairAgreements() {
+    return pairAgreements;
+  }
+
+  public int getNumberEval() {
+    return numberEval;
+  }
+
+  public double getCorrectFraction() {
+    return correctFraction;
+  }
+
+  public double[] getAverageWilson() {
+    return averageWilson.clone();
+  }
+
+  public double[] getAgreementAndKappa() {
+    return agreementAndKappa.clone();
+  }
+
+  public double[] getTotalDoubleFactsAndProgress() {
+    return totalDoubleFactsAndProgress.clone();
+  }
+}
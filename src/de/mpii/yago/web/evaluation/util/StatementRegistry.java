@@ -0,0 +1,202 @@
+package de.mpii.yago.web.evaluation.util;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import mpi.database.DBConnection;
+
+import org.postgresql.PGStatement;
+
+/**
+ * The SQL of the parameterized YagoDatabase queries, built once when
+ * the column names are known, and the prepared statements for them. Every
+ * text is constant and takes its values as parameters, lists as array
+ * parameters (= ANY(?)). Each pooled connection keeps one server-side
+ * prepared statement per query.
+ *
+ * The statements are plain JDBC statements of the physical connection:
+ * the mpiDB statement wrappers cannot bind PostgreSQL arrays.
+ */
+class StatementRegistry {
+
+  // prepared statements by SQL text, per physical connection
+  private static final Map<Connection, Map<String, PreparedStatement>> cache = Collections
+      .synchronizedMap(new WeakHashMap<Connection, Map<String, PreparedStatement>>());
+
+  /** Domain and range facts: domain relation, range relation */
+  final String schema;
+
+  /** Intervals of all techniques in facts_tech_rel_meta */
+  final String techniqueIntervals;
+
+  /** Subclasses of a class, transitively: class, subclass relation, subclass relation */
+  final String subclasses;
+
+  /** The whole evaluation_settings table */
+  final String settings;
+
+  /** Ids of all evaluated facts */
+  final String evaluatedFactIds;
+
+  /** Ids of all evaluated facts in facts_rel_tech_sorted */
+  final String evaluatedRelationSortedIds;
+
+  /** Ids of all evaluated facts in facts_tech_rel_sorted */
+  final String evaluatedTechniqueSortedIds;
+
+  /** Number of evaluations by user, most first */
+  final String userEvaluationCounts;
+
+  /** Facts by ids in facts_rel_tech_sorted: int[] */
+  final String relationFacts;
+
+  /** Facts by ids in facts_tech_rel_sorted: int[] */
+  final String techniqueFacts;
+
+  /** Facts about a fact: fact id, excluded relations */
+  final String relatedFacts;
+
+  /** Intervals of all relations in facts_rel_tech_meta: excluded techniques */
+  final String relationIntervals;
+
+  /** Relations to evaluate: excluded techniques, excluded relations */
+  final String allRelations;
+
+  /** Objects of the facts about the relations to evaluate: relation */
+  final String relationArg2s;
+
+  /** Object of a fact: relation, subject */
+  final String arg2;
+
+  /** Subjects and objects of facts: relation, subjects */
+  final String arg2s;
+
+  /** Facts with their extraction technique: fact ids, technique relation */
+  final String factsWithTechnique;
+
+  /** Insert into the evaluation table */
+  final String insertEvaluation;
+
+  /** Users who evaluated facts, and their results: fact ids */
+  final String evaluators;
+
+  /** A fact evaluated once, by another user: excluded user */
+  final String factForSecondEvaluation;
+
+  /** First right/wrong evaluation of every fact: excluded relations, excluded techniques */
+  final String firstEvaluations;
+
+  /** Judgments with relation and technique, by fact */
+  final String judgments;
+
+  /** Subject and object of all evaluations */
+  final String evaluatedFacts;
+
+  /** Update of subject and object of an evaluated fact: subject, object, fact id */
+  final String normalizeEvaluation;
+
+  StatementRegistry(String factsTable, String id, String subject, String predicate, String object) {
+    schema = "SELECT " + subject + ", " + predicate + ", " + object + " FROM " + factsTable + " WHERE " + predicate + " IN (?, ?)";
+
+    techniqueIntervals = "SELECT technique, first, count FROM facts_tech_rel_meta ORDER BY technique";
+
+    subclasses = "WITH RECURSIVE subclassOf(" + subject + ", " + object + ") AS (SELECT " + subject + ", " + object + " FROM " + factsTable + " WHERE " + object + " = ? AND " + predicate + " = ? UNION ALL SELECT f."
+        + subject + ", f." + object + " FROM subclassOf c, " + factsTable + " f WHERE f." + predicate + " = ? AND c." + subject + " = f." + object + ") SELECT " + subject + ", " + object + " FROM subclassOf";
+
+    settings = "SELECT key, value FROM evaluation_settings";
+
+    evaluatedFactIds = "SELECT DISTINCT factid FROM evaluation";
+
+    evaluatedRelationSortedIds = "SELECT DISTINCT fs.id FROM " + EvaluatedFacts.RELATION_TABLE + " fs, evaluation e WHERE fs.yagoid=e.factid";
+
+    evaluatedTechniqueSortedIds = "SELECT DISTINCT fs.id FROM " + EvaluatedFacts.TECHNIQUE_TABLE + " fs, evaluation e WHERE fs.yagoid=e.factid";
+
+    userEvaluationCounts = "SELECT username, count(*) AS count FROM evaluation GROUP BY username ORDER BY count DESC";
+
+    relationFacts = "SELECT f." + subject + ", f." + predicate + ", f." + object + ", f." + id + ", fs.technique, fs.id FROM " + factsTable + " f, facts_rel_tech_sorted fs WHERE f." + id
+        + "=fs.yagoid AND fs.id = ANY(?)";
+
+    techniqueFacts = "SELECT f." + id + " AS " + id + ", f." + subject + " AS " + subject + ", f." + predicate + " AS " + predicate + ", f." + object + " AS " + object + ", fs.id AS sortedid FROM " + factsTable
+        + " f, facts_tech_rel_sorted fs WHERE f." + id + "=fs.yagoid AND fs.id = ANY(?)";
+
+    relationIntervals = "SELECT fs." + predicate + ", fs.first, fs.count FROM facts_rel_tech_meta fs WHERE fs.technique NOT LIKE '\"RuleExtractor%' AND fs.technique <> ALL(?) ORDER BY fs." + predicate;
+
+    allRelations = "SELECT DISTINCT " + predicate + " FROM facts_rel_tech_meta WHERE technique <> ALL(?) AND " + predicate + " <> ALL(?)";
+
+    relationArg2s = "SELECT " + subject + ", " + object + " FROM " + factsTable + " WHERE " + predicate + "=? AND " + subject + " IN (SELECT DISTINCT " + predicate + " FROM facts_rel_tech_meta)";
+
+    relatedFacts = "SELECT " + id + "," + predicate + "," + object + " FROM " + factsTable + " WHERE " + subject + "=? AND " + predicate + " <> ALL(?)";
+
+    arg2 = "SELECT " + object + " FROM " + factsTable + " WHERE " + predicate + "=? AND " + subject + "=?";
+
+    arg2s = "SELECT " + subject + ", " + object + " FROM " + factsTable + " WHERE " + predicate + "=? AND " + subject + " = ANY(?)";
+
+    factsWithTechnique = "SELECT f1." + id + " AS " + id + ", f1." + subject + " AS " + subject + ", f1." + predicate + " AS " + predicate + ", f1." + object + " AS " + object + ", f3." + object + " AS technique FROM "
+        + factsTable + " f1, " + factsTable + " f2, " + factsTable + " f3 WHERE f1." + id + " = ANY(?) AND f2." + subject + "=f1." + id + " AND f3." + subject + "=f2." + id + " AND f3." + predicate + "=?";
+
+    insertEvaluation = "INSERT INTO evaluation (timepoint, factid, " + subject + ", " + predicate + ", " + object + ", technique, eval, username, target) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    evaluators = "SELECT factid, username, eval FROM evaluation WHERE factid = ANY(?)";
+
+    factForSecondEvaluation = "SELECT e." + subject + ",e." + predicate + ",e." + object + ",e.factid,e.target,e.technique FROM (SELECT COUNT(factid) AS fid, factid FROM evaluation WHERE NOT " + subject
+        + " LIKE '#%' AND (eval='@right' OR eval='@wrong') AND predicate not in (SELECT value from evaluation_settings where key = 'exclude_relation') "
+        + "AND technique not in (SELECT value from evaluation_settings where key = 'exclude_technique') GROUP BY factid HAVING COUNT(factid) = 1) cc "
+        + "INNER JOIN evaluation e ON e.factid = cc.factid WHERE e.username<>? ORDER BY RANDOM()";
+
+    firstEvaluations = "SELECT DISTINCT ON (factid) " + predicate + ", technique, username, eval, target FROM evaluation WHERE eval<>'" + EvaluationManager.IGNORE + "' AND " + predicate
+        + " <> ALL(?) AND (technique IS NULL OR technique <> ALL(?)) ORDER BY factid, timepoint";
+
+    judgments = "SELECT factid, username, eval, " + predicate + ", technique FROM evaluation ORDER BY factid";
+
+    evaluatedFacts = "SELECT factid, " + subject + ", " + object + " FROM evaluation";
+
+    normalizeEvaluation = "UPDATE evaluation SET " + subject + "=?, " + object + "=? WHERE factid=?";
+  }
+
+  /**
+   * Returns the prepared statement for the SQL text, it is prepared once per
+   * connection. The statement belongs to the connection, do not close it.
+   */
+  static PreparedStatement prepare(DBConnection con, String sql) throws SQLException {
+    Connection physical = con.getPhysicalConnection();
+
+    Map<String, PreparedStatement> statements;
+    synchronized (cache) {
+      statements = cache.get(physical);
+      if (statements == null) {
+        statements = new ConcurrentHashMap<String, PreparedStatement>();
+        cache.put(physical, statements);
+      }
+    }
+
+    PreparedStatement stmt = statements.get(sql);
+    if (stmt == null || stmt.isClosed()) {
+      stmt = physical.prepareStatement(sql);
+      if (stmt instanceof PGStatement) {
+        // prepare on the server right away, the statement is reused anyway
+        ((PGStatement) stmt).setPrepareThreshold(1);
+      }
+      statements.put(sql, stmt);
+    }
+    return stmt;
+  }
+
+  static Array intArray(DBConnection con, int[] values) throws SQLException {
+    Integer[] elements = new Integer[values.length];
+    for (int i = 0; i < values.length; i++) {
+      elements[i] = values[i];
+    }
+    return con.getPhysicalConnection().createArrayOf("int4", elements);
+  }
+
+  static Array textArray(DBConnection con, Collection<String> values) throws SQLException {
+    return con.getPhysicalConnection().createArrayOf("text", values.toArray(new String[values.size()]));
+  }
+}
@@ -0,0 +1,175 @@
+package de.mpii.yago.web.evaluation.util;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import de.mpii.yago.web.evaluation.model.EvaluationEntry;
+
+/**
+ * Process-wide registry of the shared state of all evaluation targets.
+ * 
+ * The per-target progress is loaded once from the evaluation table and
+ * afterwards kept up to date by YagoDatabase.storeFactEvaluations, so
+ * choosing a target never needs to scan the evaluation table. Open targets
+ * are ordered by progress in one TargetScheduler per kind of target.
+ */
+public class TargetRegistry {
+
+  /**
+   * Maximum number of sessions that draw from the same target while other
+   * targets are still available. Spreads parallel annotators over targets.
+   */
+  public static final int MAX_STREAMS_PER_TARGET = 3;
+
+  private static final ConcurrentMap<String, TargetState> targets = new ConcurrentHashMap<String, TargetState>();
+
+  private static final TargetScheduler relations = new TargetScheduler();
+
+  private static final TargetScheduler techniques = new TargetScheduler();
+
+  private static volatile boolean loaded = false;
+
+  /**
+   * Returns the state for the target, creating it if necessary.
+   *
+   * @param evaluationTarget  EvaluationEntry.EVAL_TARGET_RELATION or EvaluationEntry.EVAL_TARGET_TECHNIQUE
+   * @param target  The relation or technique
+   */
+  public static TargetState get(String evaluationTarget, String target) {
+    String key = evaluationTarget + "\t" + target;
+    TargetState state = targets.get(key);
+
+    if (state == null) {
+      TargetState newState = new TargetState(evaluationTarget, target);
+      state = targets.putIfAbsent(key, newState);
+      if (state == null) {
+        state = newState;
+      }
+    }
+
+    return state;
+  }
+
+  /**
+   * @param evaluationTarget  EvaluationEntry.EVAL_TARGET_RELATION or EvaluationEntry.EVAL_TARGET_TECHNIQUE
+   * @return  The scheduler holding the open targets of this kind
+   */
+  public static TargetScheduler getScheduler(String evaluationTarget) {
+    if (evaluationTarget.equals(EvaluationEntry.EVAL_TARGET_RELATION)) {
+      return relations;
+    } else {
+      return techniques;
+    }
+  }
+
+  /**
+   * Records the outcome of a draw for a target; a target that did not yield
+   * a fact is no longer scheduled once its sampler drew all of its facts.
+   *
+   * @throws SQLException
+   */
+  public static void recordDraw(TargetState state, boolean gotFact) throws SQLException {
+    if (!gotFact && YagoDatabase.isExhausted(state.getEvaluationTarget(), state.getTarget())) {
+      getScheduler(state.getEvaluationTarget()).markExhausted(state);
+    }
+  }
+
+  /**
+   * Loads the progress of all targets from the evaluation table, unless this
+   * was already done.
+   *
+   * @throws SQLException
+   */
+  public static void ensureLoaded(YagoDatabase ydb) throws SQLException {
+    if (loaded) {
+      return;
+    }
+
+    // no evaluation is stored meanwhile, see YagoDatabase.judgmentLock
+    YagoDatabase.judgmentLock.writeLock().lock();
+    try {
+      synchronized (TargetRegistry.class) {
+        if (!loaded) {
+          load(ydb);
+        }
+      }
+    } finally {
+      YagoDatabase.judgmentLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * (Re)loads the progress of all targets from the evaluation store and
+   * schedules all relations and techniques to evaluate. On a reload the
+   * schedulers are rebuilt, so targets that are excluded now are dropped,
+   * and targets are no longer exhausted, as their samplers start over.
+   *
+   * @throws SQLException
+   */
+  public static synchronized void load(YagoDatabase ydb) throws SQLException {
+    loaded = false;
+
+    relations.clear();
+    techniques.clear();
+
+    for (TargetState state : targets.values()) {
+      state.resetJudgments();
+      state.resetExhausted();
+    }
+
+    EvaluationStore.ensureLoaded();
+    load(EvaluationEntry.EVAL_TARGET_RELATION, EvaluationStore.Dimension.RELATION);
+    load(EvaluationEntry.EVAL_TARGET_TECHNIQUE, EvaluationStore.Dimension.TECHNIQUE);
+
+    for (String relation : ydb.getAllRelations(false)) {
+      relations.add(get(EvaluationEntry.EVAL_TARGET_RELATION, relation));
+    }
+
+    for (String technique : ydb.getAllTechniques()) {
+      techniques.add(get(EvaluationEntry.EVAL_TARGET_TECHNIQUE, technique));
+    }
+
+    loaded = true;
+  }
+
+  private static void load(String evaluationTarget, EvaluationStore.Dimension dimension) {
+    for (Map.Entry<String, int[]> counts : EvaluationStore.count(dimension, evaluationTarget).entrySet()) {
+      get(evaluationTarget, counts.getKey()).addJudgments(counts.getValue()[0], counts.getValue()[1]);
+    }
+  }
+
+  /**
+   * Updates the progress with a newly stored first right/wrong evaluation
+   * of a fact, the evaluations EvaluationStore.append is called for. Must
+   * only be called for facts whose relation and technique are not excluded
+   * from the evaluation.
+   */
+  public static void recordJudgment(EvaluationEntry e) {
+    if (!loaded) {
+      return; // will be part of the initial load
+    }
+
+    record(e);
+  }
+
+  private static void record(EvaluationEntry e) {
+    if (e.getTarget() == null || e.getEvaluationResult().equals(EvaluationManager.IGNORE)) {
+      return;
+    }
+
+    String target = e.getValueForTarget(e.getTarget());
+
+    if (target == null) {
+      return;
+    }
+
+    TargetState state = get(e.getTarget(), target);
+    state.recordJudgment(e.isCorrect());
+
+    if (loaded) {
+      getScheduler(state.getEvaluationTarget()).update(state);
+    }
+  }
+}
@@ -0,0 +1,313 @@
+package de.mpii.yago.web.evaluation.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Orders the open targets of one kind (relations or techniques) by their
+ * Wilson progress, lowest first. Backed by an indexed binary min-heap, so a
+ * new judgment repositions its target in O(log n).
+ *
+ * Targets that are done (progress 1.0) or have nothing left to sample
+ * (exhausted) are not part of the heap. Only targets passed to add are
+ * scheduled; judgments of other targets, such as of related facts on meta
+ * relations, do not bring them into the heap.
+ */
+public class TargetScheduler {
+
+  private TargetState[] heap = new TargetState[16];
+
+  private double[] keys = new double[16];
+
+  private int size = 0;
+
+  // all targets passed to add since the last clear
+  private final List<TargetState> scheduled = new ArrayList<TargetState>();
+
+  /**
+   * Adds a target, unless it is exhausted or already done.
+   */
+  public synchronized void add(TargetState state) {
+    if (!state.scheduled) {
+      state.scheduled = true;
+      scheduled.add(state);
+    }
+    update(state);
+  }
+
+  /**
+   * Repositions a target after its progress changed. Targets that reached
+   * progress 1.0 are removed, targets that fell below it are re-added.
+   * Targets that were never added are ignored.
+   */
+  public synchronized void update(TargetState state) {
+    if (!state.scheduled) {
+      return;
+    }
+
+    double progress = state.getProgress();
+    int i = state.heapIndex;
+
+    if (i < 0) {
+      if (progress < 1.0 && !state.isExhausted()) {
+        insert(state, progress);
+      }
+      return;
+    }
+
+    if (progress >= 1.0) {
+      removeAt(i);
+      return;
+    }
+
+    double old = keys[i];
+    keys[i] = progress;
+
+    if (progress < old) {
+      siftUp(i);
+    } else {
+      siftDown(i);
+    }
+  }
+
+  /**
+   * Removes a target for good, because there is nothing left to sample.
+   */
+  public synchronized void markExhausted(TargetState state) {
+    state.setExhausted();
+
+    if (state.heapIndex >= 0) {
+      removeAt(state.heapIndex);
+    }
+  }
+
+  /**
+   * Removes all targets
+   */
+  public synchronized void clear() {
+    for (int i = 0; i < size; i++) {
+      heap[i].heapIndex = -1;
+      heap[i] = null;
+    }
+    size = 0;
+
+    for (TargetState state : scheduled) {
+      state.scheduled = false;
+    }
+    scheduled.clear();
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Returns the open targets in ascending order of progress. Works on a
+   * snapshot of the heap; the next element is found in O(log k) after k
+   * elements were returned, so callers pay only for what they consume.
+   */
+  public Iterable<TargetState> ordered() {
+    final TargetState[] snapshotHeap;
+    final double[] snapshotKeys;
+    final int snapshotSize;
+
+    synchronized (this) {
+      snapshotHeap = new TargetState[size];
+      System.arraycopy(heap, 0, snapshotHeap, 0, size);
+      snapshotKeys = new double[size];
+      System.arraycopy(keys, 0, snapshotKeys, 0, size);
+      snapshotSize = size;
+    }
+
+    return new Iterable<TargetState>() {
+
+      @Override
+      public Iterator<TargetState> iterator() {
+        return new OrderedIterator(snapshotHeap, snapshotKeys, snapshotSize);
+      }
+    };
+  }
+
+  private void insert(TargetState state, double progress) {
+    if (size == heap.length) {
+      TargetState[] newHeap = new TargetState[size * 2];
+      System.arraycopy(heap, 0, newHeap, 0, size);
+      heap = newHeap;
+      double[] newKeys = new double[size * 2];
+      System.arraycopy(keys, 0, newKeys, 0, size);
+      keys = newKeys;
+    }
+
+    heap[size] = state;
+    keys[size] = progress;
+    state.heapIndex = size;
+    size++;
+    siftUp(size - 1);
+  }
+
+  private void removeAt(int i) {
+    TargetState removed = heap[i];
+    size--;
+
+    if (i != size) {
+      move(size, i);
+      heap[size] = null;
+      siftDown(i);
+      siftUp(i);
+    } else {
+      heap[size] = null;
+    }
+
+    removed.heapIndex = -1;
+  }
+
+  private void siftUp(int i) {
+    TargetState state = heap[i];
+    double key = keys[i];
+
+    while (i > 0) {
+      int parent = (i - 1) / 2;
+      if (keys[parent] <= key) {
+        break;
+      }
+      move(parent, i);
+      i = parent;
+    }
+
+    heap[i] = state;
+    keys[i] = key;
+    state.heapIndex = i;
+  }
+
+  private void siftDown(int i) {
+    TargetState state = heap[i];
+    double key = keys[i];
+
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= size) {
+        break;
+      }
+      if (child + 1 < size && keys[child + 1] < keys[child]) {
+        child++;
+      }
+      if (key <= keys[child]) {
+        break;
+      }
+      move(child, i);
+      i = child;
+    }
+
+    heap[i] = state;
+    keys[i] = key;
+    state.heapIndex = i;
+  }
+
+  private void move(int from, int to) {
+    heap[to] = heap[from];
+    keys[to] = keys[from];
+    heap[to].heapIndex = to;
+  }
+
+  /**
+   * Best-first traversal of a heap snapshot: a small auxiliary heap holds
+   * the frontier of snapshot positions whose parents were already returned.
+   */
+  private static class OrderedIterator implements Iterator<TargetState> {
+
+    private final TargetState[] heap;
+
+    private final double[] keys;
+
+    private final int size;
+
+    private int[] frontier = new int[16];
+
+    private int frontierSize = 0;
+
+    OrderedIterator(TargetState[] heap, double[] keys, int size) {
+      this.heap = heap;
+      this.keys = keys;
+      this.size = size;
+
+      if (size > 0) {
+        push(0);
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return frontierSize > 0;
+    }
+
+    @Override
+    public TargetState next() {
+      if (frontierSize == 0) {
+        throw new NoSuchElementException();
+      }
+
+      int top = frontier[0];
+      frontierSize--;
+      if (frontierSize > 0) {
+        frontier[0] = frontier[frontierSize];
+        siftDown();
+      }
+
+      if (2 * top + 1 < size) {
+        push(2 * top + 1);
+      }
+      if (2 * top + 2 < size) {
+        push(2 * top + 2);
+      }
+
+      return heap[top];
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    private void push(int position) {
+      if (frontierSize == frontier.length) {
+        int[] newFrontier = new int[frontierSize * 2];
+        System.arraycopy(frontier, 0, newFrontier, 0, frontierSize);
+        frontier = newFrontier;
+      }
+
+      int i = frontierSize++;
+      while (i > 0) {
+        int parent = (i - 1) / 2;
+        if (keys[frontier[parent]] <= keys[position]) {
+          break;
+        }
+        frontier[i] = frontier[parent];
+        i = parent;
+      }
+      frontier[i] = position;
+    }
+
+    private void siftDown() {
+      int position = frontier[0];
+      int i = 0;
+
+      while (true) {
+        int child = 2 * i + 1;
+        if (child >= frontierSize) {
+          break;
+        }
+        if (child + 1 < frontierSize && keys[frontier[child + 1]] < keys[frontier[child]]) {
+          child++;
+        }
+        if (keys[position] <= keys[frontier[child]]) {
+          break;
+        }
+        frontier[i] = frontier[child];
+        i = child;
+      }
+      frontier[i] = position;
+    }
+  }
+}
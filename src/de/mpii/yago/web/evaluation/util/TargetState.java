@@ -0,0 +1,145 @@
+package de.mpii.yago.web.evaluation.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared state of a single evaluation target (a relation or a technique).
+ * All counters are updated without locking.
+ */
+public class TargetState {
+
+  private final String evaluationTarget;
+
+  private final String target;
+
+  // number of annotator sessions currently drawing facts for this target
+  private final AtomicInteger streams = new AtomicInteger();
+
+  // first evaluations (excluding ignored facts) and the correct ones among them
+  private final AtomicInteger total = new AtomicInteger();
+
+  private final AtomicInteger correct = new AtomicInteger();
+
+  private volatile boolean exhausted = false;
+
+  // position in the heap of the TargetScheduler, -1 if not in the heap
+  int heapIndex = -1;
+
+  // whether the TargetScheduler was given this target to evaluate, only
+  // such targets are (re-)inserted into its heap
+  boolean scheduled = false;
+
+  TargetState(String evaluationTarget, String target) {
+    this.evaluationTarget = evaluationTarget;
+    this.target = target;
+  }
+
+  /**
+   * @return EvaluationEntry.EVAL_TARGET_RELATION or EvaluationEntry.EVAL_TARGET_TECHNIQUE
+   */
+  public String getEvaluationTarget() {
+    return evaluationTarget;
+  }
+
+  /**
+   * @return The relation or technique
+   */
+  public String getTarget() {
+    return target;
+  }
+
+  public int getTotal() {
+    return total.get();
+  }
+
+  public int getCorrect() {
+    return correct.get();
+  }
+
+  /**
+   * @return  The Wilson progress of this target, 0.0 if nothing was evaluated yet
+   */
+  public double getProgress() {
+    int totalEvals = total.get();
+    if (totalEvals == 0) {
+      return 0.0;
+    }
+    return Wilson.progress(totalEvals, correct.get());
+  }
+
+  void recordJudgment(boolean isCorrect) {
+    // count total first, so that readers never see more correct than total
+    total.incrementAndGet();
+    if (isCorrect) {
+      correct.incrementAndGet();
+    }
+  }
+
+  void addJudgments(int total, int correct) {
+    this.total.addAndGet(total);
+    this.correct.addAndGet(correct);
+  }
+
+  void resetJudgments() {
+    total.set(0);
+    correct.set(0);
+  }
+
+  public boolean isExhausted() {
+    return exhausted;
+  }
+
+  void setExhausted() {
+    exhausted = true;
+  }
+
+  void resetExhausted() {
+    exhausted = false;
+  }
+
+  public int getStreams() {
+    return streams.get();
+  }
+
+  /**
+   * Registers a session for this target, unless maxStreams sessions are
+   * already drawing from it.
+   *
+   * @return  true if the session was registered
+   */
+  public boolean tryClaim(int maxStreams) {
+    while (true) {
+      int current = streams.get();
+      if (current >= maxStreams) {
+        return false;
+      }
+      if (streams.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Registers a session for this target regardless of how many sessions
+   * already draw from it.
+   */
+  public void claim() {
+    streams.incrementAndGet();
+  }
+
+  public void release() {
+    while (true) {
+      int current = streams.get();
+      if (current <= 0) {
+        return;
+      }
+      if (streams.compareAndSet(current, current - 1)) {
+        return;
+      }
+    }
+  }
+
+  public String toString() {
+    return evaluationTarget + " " + target;
+  }
+}
@@ -1,11 +1,15 @@
 package de.mpii.yago.web.evaluation.util;
 
 import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
-import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
@@ -13,25 +17,25 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Queue;
-import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javatools.datatypes.ArrayQueue;
 import mpi.database.DBConnection;
 import mpi.database.DBSettings;
 import mpi.database.DataManager;
-import mpi.database.interfaces.DBPreparedStatementInterface;
-import mpi.database.interfaces.DBStatementInterface;
 
 import org.apache.commons.lang.StringEscapeUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import de.mpii.yago.web.evaluation.model.EvaluationEntry;
+import de.mpii.yago.web.evaluation.model.EvaluationForm;
 import de.mpii.yago.web.evaluation.model.Fact;
 
 public class YagoDatabase {
@@ -50,15 +54,30 @@ public class YagoDatabase {
 
   public static final String PROGRESS = "Progress";
 
-  private Set<String> separateTechniques;
+  /** Rows fetched per round trip by streaming reads, unless FETCH_SIZE is set in the properties */
+  public static final int DEFAULT_FETCH_SIZE = 1000;
 
-  private Set<String> excludeTechniques;
+  private static volatile YagoDatabase instance;
 
-  private Set<String> excludeRelations;
+  private static final AtomicReference<EvaluationSettings> settings = new AtomicReference<EvaluationSettings>();
 
-  private Set<String> literalClasses;
+  private static final AtomicReference<RelationSchema> schema = new AtomicReference<RelationSchema>();
 
-  private Set<String> economicRelations;
+  private static final AtomicReference<Map<String, FactSampler>> relationSamplers = new AtomicReference<Map<String, FactSampler>>();
+
+  private static final AtomicReference<Map<String, FactSampler>> techniqueSamplers = new AtomicReference<Map<String, FactSampler>>();
+
+  /**
+   * Held for reading by storeFactEvaluations from the commit until the
+   * in-memory counters are updated, and for writing while the counters are
+   * (re)loaded from the evaluation table, so a reload never sees a stored
+   * judgment that is then applied to it a second time.
+   */
+  static final ReadWriteLock judgmentLock = new ReentrantReadWriteLock();
+
+  private static Properties properties = new Properties();
+
+  private static StatementRegistry statements;
 
   private static String FACTS_TABLE;
 
@@ -74,186 +93,361 @@ public class YagoDatabase {
 
   private static String SUBCLASS_OF = "rdfs:subClassOf";
 
-  private String YAGO_FACT = "rdf:Statement";
+  private static String YAGO_FACT = "rdf:Statement";
 
-  private String DOMAIN = "rdfs:domain";
+  private static String DOMAIN = "rdfs:domain";
 
-  private String RANGE = "rdfs:range";
+  private static String RANGE = "rdfs:range";
 
   private String USING = "<extractionTechnique>";
 
-  private Logger logger = LoggerFactory.getLogger(YagoDatabase.class);
-
-  private DecimalFormat nf = (DecimalFormat) DecimalFormat.getInstance(Locale.ENGLISH);
+  private static Logger logger = LoggerFactory.getLogger(YagoDatabase.class);
 
+  /**
+   * Use getInstance() instead, all instances share the same settings.
+   */
   public YagoDatabase() throws SQLException {
-    nf.applyPattern("#.##");
-
-    separateTechniques = loadValuesFromSettings("separate_technique");
-    excludeTechniques = loadValuesFromSettings("exclude_technique");
-    excludeRelations = loadValuesFromSettings("exclude_relation");
-    economicRelations = loadValuesFromSettings("economic_relation");
-    literalClasses = loadLiteralClasses();
+    getSettings();
   }
 
-  private Set<String> loadLiteralClasses() throws SQLException {
-    Set<String> literals = new HashSet<String>();
-    DBConnection con = null;
-    try {
-      con = DataManager.getConnection("literals");
-      DBStatementInterface stmt = con.getStatement();
-      String sql = "WITH RECURSIVE subclassOf(" + SUBJECT + ", " + OBJECT + ") AS (" + "SELECT " + SUBJECT + ", " + OBJECT + " FROM " + FACTS_TABLE + " WHERE " + OBJECT + " = '" + YAGO_LITERAL + "' AND " + PREDICATE + " = '" + SUBCLASS_OF + "' "
-          + "UNION ALL " + "SELECT f." + SUBJECT + ", f." + OBJECT + " " + "FROM subclassOf c, " + FACTS_TABLE + " f " + "WHERE f." + PREDICATE + " = '" + SUBCLASS_OF + "' AND c." + SUBJECT + " = f." + OBJECT + ") " + "SELECT " + SUBJECT + ", "
-          + OBJECT + " FROM subclassOf";
-      ResultSet rs = stmt.executeQuery(sql);
-      while (rs.next()) {
-        String s = rs.getString(SUBJECT);
-        String o = rs.getString(OBJECT);
-        literals.add(s);
-        literals.add(o);
+  /**
+   * Returns the process-wide database instance.
+   * 
+   * @throws SQLException
+   */
+  public static YagoDatabase getInstance() throws SQLException {
+    YagoDatabase ydb = instance;
+    if (ydb == null) {
+      synchronized (YagoDatabase.class) {
+        ydb = instance;
+        if (ydb == null) {
+          ydb = new YagoDatabase();
+          instance = ydb;
+        }
       }
-      rs.close();
-    } finally {
-      DataManager.releaseConnection(con);
     }
-    return literals;
+    return ydb;
   }
 
-  private Set<String> loadValuesFromSettings(String key) throws SQLException {
-    Set<String> values = new HashSet<String>();
-    DBConnection con = null;
-    try {
-      con = DataManager.getConnection("settings");
-      DBStatementInterface stmt = con.getStatement();
-      String sql = "SELECT value FROM evaluation_settings WHERE key='" + key + "'";
-      ResultSet rs = stmt.executeQuery(sql);
-      while (rs.next()) {
-        String value = rs.getString("value");
-        values.add(value);
+  /**
+   * Returns the current evaluation settings, loading them on first use.
+   * 
+   * @throws SQLException
+   */
+  public static EvaluationSettings getSettings() throws SQLException {
+    EvaluationSettings current = settings.get();
+    if (current == null) {
+      synchronized (settings) {
+        current = settings.get();
+        if (current == null) {
+          current = loadSettings();
+          settings.set(current);
+        }
       }
-      rs.close();
-    } finally {
-      DataManager.releaseConnection(con);
     }
-    return values;
+    return current;
   }
 
-  public List<EvaluationEntry> getEvaluationEntriesFromDB() throws IOException {
-    return getEvaluationEntriesFromDB(false);
+  /**
+   * Returns the domains and ranges of all relations, loading them on first use.
+   * 
+   * @throws SQLException
+   */
+  public static RelationSchema getSchema() throws SQLException {
+    RelationSchema current = schema.get();
+    if (current == null) {
+      synchronized (schema) {
+        current = schema.get();
+        if (current == null) {
+          current = loadSchema();
+          schema.set(current);
+        }
+      }
+    }
+    return current;
   }
 
   /**
-   * Returns all FIRST evaluation entries (not those done to measure inter-annotator agreement)
+   * Returns the samplers over the facts_rel_tech_meta intervals of each
+   * relation, loading them on first use.
    * 
-   * @param includeIgnoredFacts Set to true if 'ignored' facts should be included
-   * @return  All evaluation entries
-   * @throws IOException
+   * @throws SQLException
    */
-  public List<EvaluationEntry> getEvaluationEntriesFromDB(boolean includeIgnoredFacts) throws IOException {
-    List<EvaluationEntry> entries = new LinkedList<EvaluationEntry>();
-    Set<String> allIds = new HashSet<String>();
-    DBConnection con = null;
-    try {
-      con = DataManager.getConnection("StandingsPage");
-      DBStatementInterface stmt = con.getStatement();
-      StringBuilder sql = new StringBuilder("SELECT * FROM evaluation");
-      if (!includeIgnoredFacts) {
-        sql.append(" WHERE eval<>'" + EvaluationManager.IGNORE + "'");
-      }
-      sql.append(" ORDER BY timepoint ASC");
-      ResultSet rs = stmt.executeQuery(sql.toString());
-      while (rs.next()) {
-        String predicate = rs.getString(PREDICATE);
-        String technique = rs.getString("technique");
-        String factid = rs.getString("factid");
-        if (excludeRelations.contains(predicate) || excludeTechniques.contains(technique)) {
-          continue;
+  public static Map<String, FactSampler> getRelationSamplers() throws SQLException {
+    Map<String, FactSampler> current = relationSamplers.get();
+    if (current == null) {
+      synchronized (relationSamplers) {
+        current = relationSamplers.get();
+        if (current == null) {
+          current = loadRelationSamplers(getSettings());
+          relationSamplers.set(current);
         }
-        // only add first evaluation, second evaluation is just for inter-annotator-agreement
-        if (!allIds.contains(factid)) {
-          Fact f = new Fact(rs.getString(SUBJECT), predicate, rs.getString(OBJECT), factid);
-          EvaluationEntry e = new EvaluationEntry(rs.getDate("timepoint"), f, technique, rs.getString("username"), rs.getString("eval"), rs.getString("target"));
-          entries.add(e);
-          allIds.add(factid);
+      }
+    }
+    return current;
+  }
+
+  /**
+   * Returns the samplers over the facts_tech_rel_meta intervals of each
+   * technique, loading them on first use.
+   * 
+   * @throws SQLException
+   */
+  public static Map<String, FactSampler> getTechniqueSamplers() throws SQLException {
+    Map<String, FactSampler> current = techniqueSamplers.get();
+    if (current == null) {
+      synchronized (techniqueSamplers) {
+        current = techniqueSamplers.get();
+        if (current == null) {
+          current = loadTechniqueSamplers();
+          techniqueSamplers.set(current);
         }
       }
-      rs.close();
-    } catch (SQLException e) {
-      logger.warn("Error when retrieving standings: " + e);
-    } finally {
-      DataManager.releaseConnection(con);
     }
-    return entries;
+    return current;
   }
 
-  public List<Map<String, String>> groupEntriesByEvaluationTarget(List<EvaluationEntry> entries, String evaluationTarget) {
-    return groupEntriesByEvaluationTarget(entries, evaluationTarget, EVAL_TARGET, true);
+  /**
+   * @param evaluationTarget  EvaluationEntry.EVAL_TARGET_RELATION or EvaluationEntry.EVAL_TARGET_TECHNIQUE
+   * @return  true if every fact of the target was sampled, or there are none
+   * @throws SQLException
+   */
+  public static boolean isExhausted(String evaluationTarget, String target) throws SQLException {
+    FactSampler sampler = getSampler(evaluationTarget, target);
+    return sampler == null || sampler.isExhausted();
   }
 
-  public List<Map<String, String>> groupEntriesByEvaluationTarget(List<EvaluationEntry> entries, String evaluationTarget, final String sortKey, final boolean sortOrder) {
-    List<Map<String, String>> groupedEntries = new LinkedList<Map<String, String>>();
+  /**
+   * @param evaluationTarget  EvaluationEntry.EVAL_TARGET_RELATION or EvaluationEntry.EVAL_TARGET_TECHNIQUE
+   * @return  The current sampler of the target, null if it has nothing to evaluate
+   * @throws SQLException
+   */
+  public static FactSampler getSampler(String evaluationTarget, String target) throws SQLException {
+    return evaluationTarget.equals(EvaluationEntry.EVAL_TARGET_RELATION) ? getRelationSamplers().get(target) : getTechniqueSampler(target);
+  }
 
-    Map<String, Integer> totals = new HashMap<String, Integer>();
-    Map<String, Integer> corrects = new HashMap<String, Integer>();
+  /**
+   * Techniques were matched as E'...' strings, so their escapes are resolved
+   * before they are looked up
+   */
+  private static FactSampler getTechniqueSampler(String technique) throws SQLException {
+    return getTechniqueSamplers().get(StringEscapeUtils.unescapeJava(technique));
+  }
 
-    for (EvaluationEntry e : entries) {
-      if (!e.getTarget().equals(evaluationTarget)) {
-        continue; // only look at entries for current target
-      }
+  /**
+   * Reloads the evaluation settings, literal classes, relation schema,
+   * fact samplers, evaluation store, agreement counters and target registry
+   * from the database and replaces the shared snapshots.
+   * Buffered facts are released to the old samplers, as they might have been
+   * sampled with the old settings; the new samplers start over, and the
+   * targets are rescheduled and no longer exhausted, so their facts are
+   * drawn again. Called by the SettingsWatcher when the evaluation_settings
+   * table changed. Stores of evaluations wait meanwhile, see judgmentLock.
+   * 
+   * @throws SQLException
+   */
+  public static EvaluationSettings refreshSettings() throws SQLException {
+    judgmentLock.writeLock().lock();
+    try {
+      EvaluationSettings current = loadSettings();
+      settings.set(current);
+      schema.set(loadSchema());
+      relationSamplers.set(loadRelationSamplers(current));
+      techniqueSamplers.set(loadTechniqueSamplers());
+      FactPrefetcher.clear();
+      // which facts count for the double evaluation and the standings depends on the settings
+      AgreementAccumulator.load();
+      EvaluationStore.load();
+      TargetRegistry.load(getInstance());
+      StandingsSnapshot.invalidate();
+      logger.info("Refreshed the evaluation settings");
+      return current;
+    } finally {
+      judgmentLock.writeLock().unlock();
+    }
+  }
 
-      Integer total = totals.get(e.getValueForTarget(evaluationTarget));
+  /**
+   * Refreshes the settings if the evaluation_settings table differs from the
+   * current settings.
+   * 
+   * @return  true if the settings were refreshed
+   * @throws SQLException
+   */
+  public static boolean refreshSettingsIfChanged() throws SQLException {
+    EvaluationSettings current = getSettings();
+    Map<String, Set<String>> values = loadValuesFromSettings();
 
-      if (total == null) {
-        totals.put(e.getValueForTarget(evaluationTarget), 1);
-        corrects.put(e.getValueForTarget(evaluationTarget), 0);
-      } else {
-        totals.put(e.getValueForTarget(evaluationTarget), total + 1);
-      }
+    if (getValues(values, "separate_technique").equals(current.getSeparateTechniques()) && getValues(values, "exclude_technique").equals(current.getExcludeTechniques())
+        && getValues(values, "exclude_relation").equals(current.getExcludeRelations()) && getValues(values, "economic_relation").equals(current.getEconomicRelations())) {
+      return false;
+    }
 
-      Integer correct = corrects.get(e.getValueForTarget(evaluationTarget));
+    refreshSettings();
+    return true;
+  }
 
-      if (e.isCorrect()) {
-        corrects.put(e.getValueForTarget(evaluationTarget), correct + 1);
+  /**
+   * Loads all domain and range facts in one query
+   */
+  private static RelationSchema loadSchema() throws SQLException {
+    Map<String, String> domains = new HashMap<String, String>();
+    Map<String, String> ranges = new HashMap<String, String>();
+    DBConnection con = null;
+    try {
+      con = DataManager.getConnection("schema");
+      PreparedStatement stmt = StatementRegistry.prepare(con, statements.schema);
+      stmt.setString(1, DOMAIN);
+      stmt.setString(2, RANGE);
+      ResultSet rs = stmt.executeQuery();
+      while (rs.next()) {
+        Map<String, String> target = rs.getString(2).equals(DOMAIN) ? domains : ranges;
+        // keep the first one, like the single lookups did
+        if (!target.containsKey(rs.getString(1))) {
+          target.put(rs.getString(1), rs.getString(3));
+        }
       }
+      rs.close();
+    } finally {
+      DataManager.releaseConnection(con);
     }
+    return new RelationSchema(domains, ranges, YAGO_FACT);
+  }
 
-    for (String pool : totals.keySet()) {
-      Map<String, String> row = new HashMap<String, String>();
-      row.put(EVAL_TARGET, pool);
-
-      Integer totalEvals = totals.get(pool);
-      Integer correctEvals = corrects.get(pool);
-
-      row.put(EVALS, Integer.toString(totalEvals));
-      row.put(CORRECT, Integer.toString(correctEvals));
+  /**
+   * Loads the intervals of all relations in one query, without the excluded
+   * techniques and the rule extractor
+   */
+  private static Map<String, FactSampler> loadRelationSamplers(EvaluationSettings current) throws SQLException {
+    DBConnection con = null;
+    try {
+      con = DataManager.getConnection("relationSamplers");
+      PreparedStatement stmt = StatementRegistry.prepare(con, statements.relationIntervals);
+      stmt.setArray(1, StatementRegistry.textArray(con, current.getExcludeTechniques()));
+      ResultSet rs = stmt.executeQuery();
+      Map<String, FactSampler> samplers = readSamplers(rs, EvaluatedFacts.RELATION_TABLE);
+      rs.close();
+      return samplers;
+    } finally {
+      DataManager.releaseConnection(con);
+    }
+  }
 
-      double ratio = (double) correctEvals / (double) totalEvals;
+  /**
+   * Loads the intervals of all techniques in one query, one per relation
+   * the technique extracted
+   */
+  private static Map<String, FactSampler> loadTechniqueSamplers() throws SQLException {
+    DBConnection con = null;
+    try {
+      con = DataManager.getConnection("techniqueSamplers");
+      PreparedStatement stmt = StatementRegistry.prepare(con, statements.techniqueIntervals);
+      ResultSet rs = stmt.executeQuery();
+      Map<String, FactSampler> samplers = readSamplers(rs, EvaluatedFacts.TECHNIQUE_TABLE);
+      rs.close();
+      return samplers;
+    } finally {
+      DataManager.releaseConnection(con);
+    }
+  }
 
-      row.put(RATIO, nf.format(ratio * 100));
+  /**
+   * Reads (target, first, count) rows ordered by target into one sampler per target
+   */
+  private static Map<String, FactSampler> readSamplers(ResultSet rs, String table) throws SQLException {
+    Map<String, FactSampler> samplers = new HashMap<String, FactSampler>();
+    String target = null;
+    int[] first = new int[16];
+    int[] count = new int[16];
+    int size = 0;
+    while (rs.next()) {
+      if (target != null && !target.equals(rs.getString(1))) {
+        samplers.put(target, new FactSampler(table, Arrays.copyOf(first, size), Arrays.copyOf(count, size)));
+        size = 0;
+      }
+      target = rs.getString(1);
+      if (size == first.length) {
+        first = Arrays.copyOf(first, size * 2);
+        count = Arrays.copyOf(count, size * 2);
+      }
+      first[size] = rs.getInt(2);
+      count[size] = rs.getInt(3);
+      size++;
+    }
+    if (target != null) {
+      samplers.put(target, new FactSampler(table, Arrays.copyOf(first, size), Arrays.copyOf(count, size)));
+    }
+    return Collections.unmodifiableMap(samplers);
+  }
 
-      double[] wilson = Wilson.wilson(totalEvals, correctEvals);
+  private static EvaluationSettings loadSettings() throws SQLException {
+    Map<String, Set<String>> values = loadValuesFromSettings();
+    return new EvaluationSettings(getValues(values, "separate_technique"), getValues(values, "exclude_technique"), getValues(values, "exclude_relation"),
+        getValues(values, "economic_relation"), loadLiteralClasses());
+  }
 
-      row.put(WILSON_CENTER, nf.format(wilson[0] * 100));
-      row.put(WILSON_WIDTH, nf.format(wilson[1] * 100));
+  private static Set<String> getValues(Map<String, Set<String>> settingValues, String key) {
+    Set<String> values = settingValues.get(key);
+    if (values == null) {
+      values = new HashSet<String>();
+    }
+    return values;
+  }
 
-      row.put(PROGRESS, nf.format(Wilson.progress(totalEvals, correctEvals)));
+  // never null once an instance was constructed
+  private EvaluationSettings settings() {
+    return settings.get();
+  }
 
-      groupedEntries.add(row);
+  private static Set<String> loadLiteralClasses() throws SQLException {
+    Set<String> literals = new HashSet<String>();
+    DBConnection con = null;
+    try {
+      con = DataManager.getConnection("literals");
+      PreparedStatement stmt = StatementRegistry.prepare(con, statements.subclasses);
+      stmt.setString(1, YAGO_LITERAL);
+      stmt.setString(2, SUBCLASS_OF);
+      stmt.setString(3, SUBCLASS_OF);
+      ResultSet rs = stmt.executeQuery();
+      while (rs.next()) {
+        String s = rs.getString(SUBJECT);
+        String o = rs.getString(OBJECT);
+        literals.add(s);
+        literals.add(o);
+      }
+      rs.close();
+    } finally {
+      DataManager.releaseConnection(con);
     }
+    return literals;
+  }
 
-    Collections.sort(groupedEntries, new Comparator<Map<String, String>>() {
-
-      @Override
-      public int compare(Map<String, String> one, Map<String, String> two) {
-        if (sortOrder) {
-          return one.get(sortKey).compareTo(two.get(sortKey));
-        } else {
-          return two.get(sortKey).compareTo(one.get(sortKey));
+  /**
+   * Loads the whole evaluation_settings table in one query
+   * 
+   * @return  Values by key
+   */
+  private static Map<String, Set<String>> loadValuesFromSettings() throws SQLException {
+    Map<String, Set<String>> values = new HashMap<String, Set<String>>();
+    DBConnection con = null;
+    try {
+      con = DataManager.getConnection("settings");
+      PreparedStatement stmt = StatementRegistry.prepare(con, statements.settings);
+      ResultSet rs = stmt.executeQuery();
+      while (rs.next()) {
+        String key = rs.getString("key");
+        Set<String> keyValues = values.get(key);
+        if (keyValues == null) {
+          keyValues = new HashSet<String>();
+          values.put(key, keyValues);
         }
+        keyValues.add(rs.getString("value"));
       }
-    });
-
-    return groupedEntries;
+      rs.close();
+    } finally {
+      DataManager.releaseConnection(con);
+    }
+    return values;
   }
 
   /**
@@ -262,96 +456,72 @@ public class YagoDatabase {
    * @throws SQLException 
    */
   public Queue<Fact> randomFactsForRelation(String relation, int numberOfFacts) throws SQLException {
-    DBConnection con = null;
-    Queue<Fact> result = new ArrayQueue<Fact>();
-    try {
-      StringBuffer query = new StringBuffer("SELECT first,count FROM facts_rel_tech_meta fs WHERE " + PREDICATE + "=");
-      query.append("'" + StringEscapeUtils.escapeSql(relation) + "'");
-      //    for (String technique : separateTechniques)
-      //      query.append(" AND fs.technique<>").append("'"+technique+"'");
-      for (String technique : excludeTechniques)
-        query.append(" AND fs.technique<>").append("'" + StringEscapeUtils.escapeSql(technique) + "'");
-
-      query.append(" AND fs.technique NOT LIKE '\"RuleExtractor%'");
-      con = DataManager.getConnection("randomRelations");
-      DBStatementInterface stmt = con.getStatement();
-      ResultSet dbResults = stmt.executeQuery(query.toString());
-      List<Integer[]> intervals = new ArrayList<Integer[]>();
-      int totalFacts = 0;
-      while (dbResults.next()) {
-        Integer[] interval = new Integer[2];
-        interval[0] = dbResults.getInt(1);
-        interval[1] = dbResults.getInt(2);
-        intervals.add(interval);
-        totalFacts += interval[1];
-      }
-
-      if (intervals.size() < 1) {
-        // nothing to evaluate for this relation
-        dbResults.close();
-        return result;
-      }
-
-      Set<Integer> randomIdsSet = new HashSet<Integer>();
-
-      StringBuilder randomIds = new StringBuilder();
-
-      Random rg = new Random();
-
-      // choose randomly from intervals, weighted according to size
-      double intervalChooser = rg.nextDouble();
-      double current = 0.0;
-
-      int chosenInterval = 0;
-
-      for (; chosenInterval < intervals.size(); chosenInterval++) {
-        int size = intervals.get(chosenInterval)[1];
-
-        double weight = (double) size / (double) totalFacts;
-
-        if (intervalChooser < (current + weight)) {
-          break;
-        } else {
-          current += weight;
-        }
-      }
+    return randomFactsForRelation(relation, numberOfFacts, false);
+  }
 
-      Integer[] interval = intervals.get(chosenInterval);
+  /**
+   * Fills the list of candidate random facts with all associated facts from
+   * the database.
+   * The returned facts are outstanding in the sampler of the relation until
+   * they are settled or released, see FactSampler.
+   * @param stratified  If true, the facts are spread over all intervals of the
+   *                    relation in proportion to their size, see FactSampler.nextStratified
+   * @throws SQLException 
+   */
+  public Queue<Fact> randomFactsForRelation(String relation, int numberOfFacts, boolean stratified) throws SQLException {
+    return randomFactsForRelation(getRelationSamplers().get(relation), numberOfFacts, stratified);
+  }
 
-      for (int i = 0; i < numberOfFacts; i++) {
-        // choose random number for all possible relation facts
-        int randomInt = interval[0] + (int) (rg.nextDouble() * interval[1]);
+  Queue<Fact> randomFactsForRelation(FactSampler sampler, int numberOfFacts, boolean stratified) throws SQLException {
+    DBConnection con = null;
+    Queue<Fact> result = new ArrayQueue<Fact>();
 
-        if (!randomIdsSet.contains(randomInt)) {
-          randomIds.append(Integer.toString(randomInt));
-          randomIds.append(",");
+    EvaluatedFacts.ensureLoaded();
 
-          randomIdsSet.add(randomInt);
-        }
-      }
+    if (sampler == null) {
+      // nothing to evaluate for this relation
+      return result;
+    }
 
-      dbResults.close();
+    // ids not drawn before and not known to be evaluated
+    int[] randomIds = stratified ? sampler.nextStratified(numberOfFacts) : sampler.next(numberOfFacts);
 
-      if (randomIds.length() == 0) {
-        return result;
-      }
+    if (randomIds.length == 0) {
+      return result;
+    }
 
-      query = new StringBuffer("SELECT " + FACTS_TABLE + "." + SUBJECT + ", " + FACTS_TABLE + "." + PREDICATE + ", " + FACTS_TABLE + "." + OBJECT + ", " + FACTS_TABLE + "." + ID + ", facts_rel_tech_sorted.technique " + "FROM " + FACTS_TABLE
-          + ", facts_rel_tech_sorted " + "WHERE " + FACTS_TABLE + "." + ID + "=facts_rel_tech_sorted.yagoid " + "AND facts_rel_tech_sorted.id IN (");
-      query.append(randomIds.substring(0, randomIds.length() - 1)).append(") ");
-      query.append("AND " + FACTS_TABLE + "." + ID + " NOT IN (SELECT factid FROM evaluation)");
+    try {
+      con = DataManager.getConnection("randomRelations");
+      PreparedStatement stmt = StatementRegistry.prepare(con, statements.relationFacts);
+      stmt.setArray(1, StatementRegistry.intArray(con, randomIds));
 
-      dbResults = stmt.executeQuery(query.toString());
+      ResultSet dbResults = stmt.executeQuery();
 
       // get facts
+      List<Fact> facts = new ArrayList<Fact>();
       while (dbResults.next()) {
+        if (EvaluatedFacts.isEvaluated(dbResults.getString(4))) {
+          EvaluatedFacts.markEvaluated(EvaluatedFacts.RELATION_TABLE, dbResults.getInt(6));
+          continue;
+        }
         Fact f = new Fact(dbResults.getString(1), dbResults.getString(2), dbResults.getString(3), dbResults.getString(4));
         f.setTechnique(dbResults.getString(5));
-        result.add(f);
+        f.setSampleId(dbResults.getInt(6));
+        facts.add(f);
       }
 
       dbResults.close();
 
+      if (stratified) {
+        // the rows come grouped by interval, mix the extractors
+        Collections.shuffle(facts);
+      }
+      result.addAll(facts);
+
+      settleUnserved(sampler, randomIds, facts);
+    } catch (SQLException e) {
+      releaseAll(sampler, randomIds);
+      throw e;
     } finally {
       DataManager.releaseConnection(con);
     }
@@ -374,65 +544,97 @@ public class YagoDatabase {
    * technique.
    */
   public Queue<Fact> randomFactsForTechnique(String technique, int numberOfFacts) throws SQLException {
+    return randomFactsForTechnique(technique, numberOfFacts, false);
+  }
+
+  /**
+   * Returns a list of candidate random facts from the database for a given
+   * technique, drawn from all relations the technique extracted.
+   * The returned facts are outstanding in the sampler of the technique until
+   * they are settled or released, see FactSampler.
+   * @param stratified  If true, the facts are spread over the relations in
+   *                    proportion to their size, see FactSampler.nextStratified
+   */
+  public Queue<Fact> randomFactsForTechnique(String technique, int numberOfFacts, boolean stratified) throws SQLException {
+    return randomFactsForTechnique(getTechniqueSampler(technique), technique, numberOfFacts, stratified);
+  }
+
+  Queue<Fact> randomFactsForTechnique(FactSampler sampler, String technique, int numberOfFacts, boolean stratified) throws SQLException {
     DBConnection con = null;
     Queue<Fact> result = new ArrayQueue<Fact>();
-    try {
-      StringBuffer query = new StringBuffer("SELECT first,count FROM facts_tech_rel_meta WHERE technique=");
-      query.append("E'" + StringEscapeUtils.escapeSql(technique) + "'");
-      con = DataManager.getConnection("randomTechniques");
-      DBStatementInterface stmt = con.getStatement();
-      ResultSet dbResults = stmt.executeQuery(query.toString());
 
-      if (!dbResults.next()) {
-        dbResults.close();
-        return result;
-      }
+    EvaluatedFacts.ensureLoaded();
 
-      int first = dbResults.getInt(1);
-      int count = dbResults.getInt(2);
-
-      Set<Integer> randomIdsSet = new HashSet<Integer>();
+    if (sampler == null) {
+      return result;
+    }
 
-      StringBuilder randomIds = new StringBuilder();
+    // ids not drawn before and not known to be evaluated
+    int[] randomIds = stratified ? sampler.nextStratified(numberOfFacts) : sampler.next(numberOfFacts);
 
-      Random rg = new Random();
+    if (randomIds.length == 0) {
+      return result;
+    }
 
-      for (int i = 0; i < numberOfFacts; i++) {
-        int randomInt = (int) (rg.nextDouble() * (double) count + first);
+    try {
+      con = DataManager.getConnection("randomTechniques");
+      PreparedStatement stmt = StatementRegistry.prepare(con, statements.techniqueFacts);
+      stmt.setArray(1, StatementRegistry.intArray(con, randomIds));
 
-        if (!randomIdsSet.contains(randomInt)) {
-          randomIds.append(Integer.toString(randomInt));
-          randomIds.append(",");
+      ResultSet dbResults = stmt.executeQuery();
 
-          randomIdsSet.add(randomInt);
+      // evaluated facts are filtered here instead of joining the evaluation table
+      List<Fact> facts = new ArrayList<Fact>();
+      while (dbResults.next()) {
+        if (EvaluatedFacts.isEvaluated(dbResults.getString(ID))) {
+          EvaluatedFacts.markEvaluated(EvaluatedFacts.TECHNIQUE_TABLE, dbResults.getInt("sortedid"));
+          continue;
         }
+        Fact f = new Fact(dbResults.getString(SUBJECT), dbResults.getString(PREDICATE), dbResults.getString(OBJECT), dbResults.getString(ID));
+        f.setTechnique(technique);
+        f.setSampleId(dbResults.getInt("sortedid"));
+        facts.add(f);
       }
-
       dbResults.close();
 
-      if (randomIds.length() == 0) {
-        return result;
+      if (stratified) {
+        // the rows come grouped by relation, mix them
+        Collections.shuffle(facts);
       }
+      result.addAll(facts);
 
-      query = new StringBuffer("SELECT f." + ID + " AS " + ID + ", f." + SUBJECT + " AS " + SUBJECT + ", f." + PREDICATE + " AS " + PREDICATE + ", f." + OBJECT + " AS " + OBJECT + " " + "FROM " + FACTS_TABLE
-          + " f, facts_tech_rel_sorted fs, evaluation e " + "WHERE f." + ID + "=fs.yagoid AND fs.id IN (");
-      query.append(randomIds.substring(0, randomIds.length() - 1)).append(") ");
-      query.append("AND f." + ID + " NOT IN (SELECT factid FROM evaluation)");
-
-      dbResults = stmt.executeQuery(query.toString());
-
-      while (dbResults.next()) {
-        Fact f = new Fact(dbResults.getString(SUBJECT), dbResults.getString(PREDICATE), dbResults.getString(OBJECT), dbResults.getString(ID));
-        f.setTechnique(technique);
-        result.add(f);
-      }
-      dbResults.close();
+      settleUnserved(sampler, randomIds, facts);
+    } catch (SQLException e) {
+      releaseAll(sampler, randomIds);
+      throw e;
     } finally {
       DataManager.releaseConnection(con);
     }
     return (result);
   }
 
+  /**
+   * Settles the drawn ids that did not yield a fact to serve: evaluated
+   * facts and ids without a fact
+   */
+  private static void settleUnserved(FactSampler sampler, int[] drawnIds, List<Fact> served) {
+    Set<Integer> servedIds = new HashSet<Integer>();
+    for (Fact f : served) {
+      servedIds.add(f.getSampleId());
+    }
+    for (int id : drawnIds) {
+      if (!servedIds.contains(id)) {
+        sampler.settle(id);
+      }
+    }
+  }
+
+  private static void releaseAll(FactSampler sampler, int[] drawnIds) {
+    for (int id : drawnIds) {
+      sampler.release(id);
+    }
+  }
+
   public static synchronized void connectToDBWithProperties(String dbSettings) throws IOException {
     if (!DataManager.isConnected()) {
       ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
@@ -443,21 +645,80 @@ public class YagoDatabase {
       SUBJECT = p.getProperty("SUBJECT", "subject");
       PREDICATE = p.getProperty("PREDICATE", "predicate");
       OBJECT = p.getProperty("OBJECT", "object");
+      properties = p;
+      statements = new StatementRegistry(FACTS_TABLE, ID, SUBJECT, PREDICATE, OBJECT);
       DBSettings settings = new DBSettings(p.getProperty("hostname"), Integer.parseInt(p.getProperty("port")), p.getProperty("user"), p.getProperty("pass"), 20, p.getProperty("type"), p.getProperty("database"));
       DataManager.connect(settings);
     }
   }
 
+  /**
+   * Returns a value from the settings file passed to connectToDBWithProperties
+   */
+  public static String getProperty(String key, String defaultValue) {
+    return properties.getProperty(key, defaultValue);
+  }
+
+  private static int fetchSize() {
+    try {
+      int fetchSize = Integer.parseInt(getProperty("FETCH_SIZE", Integer.toString(DEFAULT_FETCH_SIZE)).trim());
+      return fetchSize > 0 ? fetchSize : DEFAULT_FETCH_SIZE;
+    } catch (NumberFormatException e) {
+      return DEFAULT_FETCH_SIZE;
+    }
+  }
+
+  /** Receives the rows of a streaming read */
+  interface RowHandler {
+
+    void row(ResultSet rs) throws SQLException;
+  }
+
+  /**
+   * Runs the query and passes its rows to the handler as they arrive. The
+   * PostgreSQL driver only reads through a server-side cursor, FETCH_SIZE
+   * rows at a time, inside a transaction, so autocommit is off while
+   * streaming; anything the handler writes on the same connection is
+   * committed at the end.
+   */
+  private static void stream(DBConnection con, PreparedStatement stmt, RowHandler handler) throws SQLException {
+    Connection physical = con.getPhysicalConnection();
+    boolean autoCommit = physical.getAutoCommit();
+    boolean committed = false;
+    try {
+      physical.setAutoCommit(false);
+      stmt.setFetchSize(fetchSize());
+      ResultSet rs = stmt.executeQuery();
+      try {
+        while (rs.next()) {
+          handler.row(rs);
+        }
+      } finally {
+        rs.close();
+      }
+      physical.commit();
+      committed = true;
+    } finally {
+      try {
+        if (!committed) {
+          physical.rollback();
+        }
+        physical.setAutoCommit(autoCommit);
+      } catch (SQLException e) {
+        logger.warn("Could not reset connection after streaming: " + e);
+      }
+    }
+  }
+
   public List<Fact> getRelatedFactsForFact(Fact fact) throws SQLException {
     List<Fact> relatedFacts = new LinkedList<Fact>();
     DBConnection con = null;
     try {
-      StringBuilder query = new StringBuilder("SELECT " + ID + "," + PREDICATE + "," + OBJECT + " FROM " + FACTS_TABLE + " WHERE " + SUBJECT + "='" + fact.getId() + "'");
-      for (String relation : excludeRelations)
-        query.append(" AND " + PREDICATE + "<>").append("'" + StringEscapeUtils.escapeSql(relation) + "'");
       con = DataManager.getConnection("relatedFacts");
-      DBStatementInterface stmt = con.getStatement();
-      ResultSet dbResults = stmt.executeQuery(query.toString());
+      PreparedStatement stmt = StatementRegistry.prepare(con, statements.relatedFacts);
+      stmt.setString(1, fact.getId());
+      stmt.setArray(2, StatementRegistry.textArray(con, getSettings().getExcludeRelations()));
+      ResultSet dbResults = stmt.executeQuery();
       int count = 1;
       while (dbResults.next()) {
         String id = dbResults.getString(ID);
@@ -480,8 +741,10 @@ public class YagoDatabase {
     DBConnection con = null;
     try {
       con = DataManager.getConnection("gloss");
-      DBStatementInterface stmt = con.getStatement();
-      ResultSet rs = stmt.executeQuery("SELECT " + OBJECT + " FROM " + FACTS_TABLE + " WHERE " + PREDICATE + "='" + StringEscapeUtils.escapeSql(relation) + "' AND " + SUBJECT + "='" + StringEscapeUtils.escapeSql(arg1) + "'");
+      PreparedStatement stmt = StatementRegistry.prepare(con, statements.arg2);
+      stmt.setString(1, relation);
+      stmt.setString(2, arg1);
+      ResultSet rs = stmt.executeQuery();
       if (rs.next()) {
         arg2 = rs.getString(OBJECT);
       }
@@ -492,146 +755,127 @@ public class YagoDatabase {
     return arg2;
   }
 
-  public double[] getAgreementAndKappa() throws SQLException {
-    double kappa = 0;
-    double agreementProb = 0;
+  /**
+   * Returns arg2 for all given arg1s in one query
+   * 
+   * @return  arg2 by arg1, arg1s without a fact for the relation are missing
+   */
+  public static Map<String, String> getArg2(Collection<String> arg1s, String relation) throws SQLException {
+    Map<String, String> arg2s = new HashMap<String, String>();
     DBConnection con = null;
     try {
-      con = DataManager.getConnection("kappa");
-      DBStatementInterface stmt = con.getStatement();
-      Map<String, Integer> userCorrectCount = new HashMap<String, Integer>();
-      Map<String, Integer> userTotalCount = new HashMap<String, Integer>();
-      String query = "SELECT username, eval FROM evaluation WHERE eval='@right' OR eval='@wrong'"; // WHERE timepoint > TIMESTAMP '2011-01-01 00:00:00'";
-      ResultSet rs = stmt.executeQuery(query);
+      con = DataManager.getConnection("gloss");
+      PreparedStatement stmt = StatementRegistry.prepare(con, statements.arg2s);
+      stmt.setString(1, relation);
+      stmt.setArray(2, StatementRegistry.textArray(con, arg1s));
+      ResultSet rs = stmt.executeQuery();
       while (rs.next()) {
-        String user = rs.getString(1);
-        if (user != null) {
-          boolean correct = rs.getString("eval").equals(EvaluationManager.RIGHT);
-          if (correct) {
-            Integer correctCount = userCorrectCount.get(user);
-            if (correctCount == null) {
-              userCorrectCount.put(user, 1);
-            } else {
-              userCorrectCount.put(user, correctCount + 1);
-            }
-          }
-          Integer totalCount = userTotalCount.get(user);
-          if (totalCount == null) {
-            userTotalCount.put(user, 1);
-          } else {
-            userTotalCount.put(user, totalCount + 1);
-          }
+        String arg1 = rs.getString(SUBJECT);
+        if (!arg2s.containsKey(arg1)) {
+          arg2s.put(arg1, rs.getString(OBJECT));
         }
       }
       rs.close();
-      Map<String, Double> userCorrectProbability = new HashMap<String, Double>();
-      for (String user : userTotalCount.keySet()) {
-        Integer correctCount = userCorrectCount.get(user);
-        if (correctCount == null) {
-          correctCount = 0;
-        }
-        double correctProb = (double) correctCount / (double) userTotalCount.get(user);
-        userCorrectProbability.put(user, correctProb);
-      }
-      query = "SELECT e.factid,e.username,e.eval FROM " + "(SELECT COUNT(factid) AS fid, factid FROM evaluation " + "WHERE eval='@right' OR eval='@wrong' " +
-      //    "WHERE timepoint > TIMESTAMP '2011-01-01 00:00:00' " +
-          "GROUP BY factid " + "HAVING COUNT(factid) = 2) cc " + "INNER JOIN evaluation e ON e.factid = cc.factid " + "ORDER BY cc.factid";
-      rs = stmt.executeQuery(query);
-      int totalSubjects = 0;
-      int totalAgreement = 0;
-      int sumRight = 0;
-      int sumWrong = 0;
-      int sumAgreement = 0;
-      String lastUser = "";
-      String lastFactid = "";
-      boolean lastCorrect = false;
+    } finally {
+      DataManager.releaseConnection(con);
+    }
+    return arg2s;
+  }
+
+  /**
+   * Returns arg2 for all relations (as arg1) that occur in the facts to evaluate
+   * 
+   * @return  arg2 by relation
+   */
+  public static Map<String, String> getArg2ForRelations(String relation) throws SQLException {
+    Map<String, String> arg2s = new HashMap<String, String>();
+    DBConnection con = null;
+    try {
+      con = DataManager.getConnection("gloss");
+      PreparedStatement stmt = StatementRegistry.prepare(con, statements.relationArg2s);
+      stmt.setString(1, relation);
+      ResultSet rs = stmt.executeQuery();
       while (rs.next()) {
-        String factid = rs.getString(1);
-        String user = rs.getString(2);
-        boolean correct = rs.getString(3).equals(EvaluationManager.RIGHT);
-        if (user == null) user = "";
-        if (lastFactid.equals(factid) && !lastUser.equals(user)) {
-          totalSubjects++;
-          int r = 0;
-          int w = 0;
-          if (correct) {
-            sumRight++;
-            r++;
-          } else {
-            sumWrong++;
-            w++;
-          }
-          if (lastCorrect) {
-            sumRight++;
-            r++;
-          } else {
-            sumWrong++;
-            w++;
-          }
-          sumAgreement += (Math.pow(r, 2) + Math.pow(w, 2) - 2) / 2;
-          if (lastCorrect == correct) {
-            totalAgreement++;
-          }
+        String arg1 = rs.getString(SUBJECT);
+        if (!arg2s.containsKey(arg1)) {
+          arg2s.put(arg1, rs.getString(OBJECT));
         }
-        lastUser = user;
-        lastFactid = factid;
-        lastCorrect = correct;
       }
       rs.close();
-      double expected = Math.pow((double) sumRight / ((double) totalSubjects * 2), 2) + Math.pow((double) sumWrong / ((double) totalSubjects * 2), 2);
-      double avrg = (double) sumAgreement / (double) totalSubjects;
-      kappa = (avrg - expected) / (1 - expected);
-      agreementProb = (double) totalAgreement / (double) totalSubjects;
-      if (Double.isNaN(agreementProb)) {
-        agreementProb = 0.0;
-      }
-      if (Double.isNaN(kappa)) {
-        kappa = 0.0;
-      }
     } finally {
       DataManager.releaseConnection(con);
     }
-    return new double[] { agreementProb * 100, kappa };
+    return arg2s;
   }
 
+  /**
+   * @return  The percentage of facts evaluated twice on which both annotators agree, and Fleiss' kappa
+   */
+  public double[] getAgreementAndKappa() throws SQLException {
+    AgreementAccumulator.ensureLoaded();
+    return AgreementAccumulator.getAgreementAndKappa();
+  }
+
+  /**
+   * @return  The number of facts evaluated twice, and the progress towards EvaluationManager.DOUBLE_EVALUATION_FRACTION
+   */
   public double[] getTwiceEvaluatedFactsTotalAndProgress() throws SQLException {
+    AgreementAccumulator.ensureLoaded();
+    return AgreementAccumulator.getTwiceEvaluatedFactsTotalAndProgress();
+  }
+
+  /** Receives the rows of a scan over the evaluation table */
+  interface JudgmentHandler {
+
+    void judgment(String factId, String user, String eval, String relation, String technique);
+  }
+
+  /**
+   * Passes all evaluations to the handler, ordered by fact id
+   */
+  static void scanJudgments(final JudgmentHandler handler) throws SQLException {
     DBConnection con = null;
-    double progress = 1.0;
-    int totalDoubleFacts = 0;
     try {
       con = DataManager.getConnection("kappa");
-      DBStatementInterface stmt = con.getStatement();
-      //      String query = "SELECT e.factid,e.username FROM " + "(SELECT COUNT(factid) AS fid, factid FROM evaluation " + "WHERE eval='@right' OR eval='@wrong' " +
-      //          "GROUP BY factid " + "HAVING COUNT(factid) = 2) cc " + "INNER JOIN evaluation e ON e.factid = cc.factid " + "ORDER BY cc.factid";
-      String query = "SELECT e.factid,e.username FROM (SELECT COUNT(factid) AS fid, factid FROM evaluation WHERE (eval='@right' OR eval='@wrong') AND predicate not in (SELECT value from evaluation_settings where key = 'exclude_relation') AND technique not in (SELECT value from evaluation_settings where key = 'exclude_technique') GROUP BY factid HAVING COUNT(factid) = 2) cc  INNER JOIN evaluation e ON e.factid = cc.factid ORDER BY cc.factid";
-
-      ResultSet rs = stmt.executeQuery(query);
-      String lastUser = "";
-      String lastFactid = "";
-      while (rs.next()) {
-        String factid = rs.getString(1);
-        String user = rs.getString(2);
-        if (user == null) user = "";
-        if (lastFactid.equals(factid) && !lastUser.equals(user)) {
-          totalDoubleFacts++;
+      stream(con, StatementRegistry.prepare(con, statements.judgments), new RowHandler() {
+
+        @Override
+        public void row(ResultSet rs) throws SQLException {
+          handler.judgment(rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getString(5));
         }
-        lastUser = user;
-        lastFactid = factid;
-      }
-      rs.close();
-      //      query = "SELECT COUNT(*) FROM evaluation WHERE eval='@right' OR eval='@wrong'";
-      query = "SELECT count(*) FROM evaluation WHERE (eval='@right' OR eval='@wrong') AND predicate not in (SELECT value from evaluation_settings where key = 'exclude_relation') AND technique not in (SELECT value from evaluation_settings where key = 'exclude_technique')";
-      rs = stmt.executeQuery(query);
-      rs.next();
-      int totalFacts = rs.getInt(1);
-      rs.close();
-      double fractionDone = (double) totalDoubleFacts / ((double) totalFacts - totalDoubleFacts);
-      progress = fractionDone / EvaluationManager.DOUBLE_EVALUATION_FRACTION;
-      if (progress > 1.0) progress = 1.0;
+      });
+    } finally {
+      DataManager.releaseConnection(con);
+    }
+  }
+
+  /** Receives the rows of a scan over the first evaluations */
+  interface EvaluationHandler {
+
+    void evaluation(String relation, String technique, String user, String eval, String target);
+  }
+
+  /**
+   * Passes the first right/wrong evaluation of every fact whose relation and
+   * technique are not excluded to the handler
+   */
+  static void scanFirstEvaluations(final EvaluationHandler handler) throws SQLException {
+    DBConnection con = null;
+    try {
+      con = DataManager.getConnection("StandingsPage");
+      PreparedStatement stmt = StatementRegistry.prepare(con, statements.firstEvaluations);
+      stmt.setArray(1, StatementRegistry.textArray(con, getSettings().getExcludeRelations()));
+      stmt.setArray(2, StatementRegistry.textArray(con, getSettings().getExcludeTechniques()));
+      stream(con, stmt, new RowHandler() {
+
+        @Override
+        public void row(ResultSet rs) throws SQLException {
+          handler.evaluation(rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getString(5));
+        }
+      });
     } finally {
       DataManager.releaseConnection(con);
     }
-    return new double[] { totalDoubleFacts, progress };
   }
 
   public Fact getFactForSecondEvaluation(String excludedUser) throws SQLException {
@@ -639,14 +883,12 @@ public class YagoDatabase {
     Fact f = null;
     try {
       con = DataManager.getConnection("secondeval");
-      DBStatementInterface stmt = con.getStatement();
       //      String query = "SELECT e." + SUBJECT + ",e." + PREDICATE + ",e." + OBJECT + ",e.factid,e.target,e.technique FROM " + "(SELECT COUNT(factid) AS fid, factid FROM evaluation " + "WHERE NOT " + SUBJECT + " LIKE '#%'"
       //          + "AND eval='@right' OR eval='@wrong' " +
       //          "GROUP BY factid " + "HAVING COUNT(factid) = 1) cc " + "INNER JOIN evaluation e ON e.factid = cc.factid " + "WHERE e.username<>'" + excludedUser + "'" + "ORDER BY RANDOM()";
-      String query = "SELECT e." + SUBJECT + ",e." + PREDICATE + ",e." + OBJECT + ",e.factid,e.target,e.technique FROM " + "(SELECT COUNT(factid) AS fid, factid FROM evaluation " + "WHERE NOT " + SUBJECT + " LIKE '#%'"
-          + "AND (eval='@right' OR eval='@wrong') " + "AND predicate not in (SELECT value from evaluation_settings where key = 'exclude_relation') " + "AND technique not in (SELECT value from evaluation_settings where key = 'exclude_technique') "
-          + "GROUP BY factid " + "HAVING COUNT(factid) = 1) cc " + "INNER JOIN evaluation e ON e.factid = cc.factid " + "WHERE e.username<>'" + StringEscapeUtils.escapeSql(excludedUser) + "'" + "ORDER BY RANDOM()";
-      ResultSet rs = stmt.executeQuery(query);
+      PreparedStatement stmt = StatementRegistry.prepare(con, statements.factForSecondEvaluation);
+      stmt.setString(1, excludedUser);
+      ResultSet rs = stmt.executeQuery();
       if (rs.next()) {
         f = new Fact(rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4));
         f.setEvaluationTarget(rs.getString(5));
@@ -668,24 +910,14 @@ public class YagoDatabase {
     Set<String> relations = new HashSet<String>();
     try {
       con = DataManager.getConnection("secondeval");
-      DBStatementInterface stmt = con.getStatement();
-      StringBuilder query = new StringBuilder("SELECT DISTINCT " + PREDICATE + " FROM facts_rel_tech_meta");
-      String appendWord = "WHERE";
-      for (String technique : excludeTechniques) {
-        query.append(" " + appendWord + " technique<>").append("'" + StringEscapeUtils.escapeSql(technique) + "'");
-        appendWord = "AND";
-      }
-      if (excludeTechniques.isEmpty()) {
-        appendWord = "WHERE";
-      }
-      for (String relation : excludeRelations) {
-        query.append(" " + appendWord + " " + PREDICATE + "<>").append("'" + StringEscapeUtils.escapeSql(relation) + "'");
-        appendWord = "AND";
-      }
-      ResultSet rs = stmt.executeQuery(query.toString());
+      PreparedStatement stmt = StatementRegistry.prepare(con, statements.allRelations);
+      stmt.setArray(1, StatementRegistry.textArray(con, getSettings().getExcludeTechniques()));
+      stmt.setArray(2, StatementRegistry.textArray(con, getSettings().getExcludeRelations()));
+      ResultSet rs = stmt.executeQuery();
+      RelationSchema relationSchema = getSchema();
       while (rs.next()) {
         String relation = rs.getString(1);
-        if (!includeMetaRelations && !getDomain(relation).equals(YAGO_FACT)) {
+        if (includeMetaRelations || !relationSchema.isMetaRelation(relation)) {
           relations.add(relation);
         }
       }
@@ -697,146 +929,306 @@ public class YagoDatabase {
   }
 
   public Set<String> getAllTechniques() {
-    return new HashSet<String>(separateTechniques);
+    return new HashSet<String>(settings().getSeparateTechniques());
   }
 
   public boolean isLiteral(String yagoClass) {
-    return literalClasses.contains(yagoClass);
+    return settings().getLiteralClasses().contains(yagoClass);
   }
 
   public String getDomain(String relation) throws SQLException {
-    DBConnection con = null;
-    String domain = "NONE";
-    try {
-      con = DataManager.getConnection("domain");
-      DBStatementInterface stmt = con.getStatement();
-      String query = "SELECT " + OBJECT + " FROM " + FACTS_TABLE + " WHERE " + PREDICATE + "='" + DOMAIN + "' AND " + SUBJECT + "='" + StringEscapeUtils.escapeSql(relation) + "'";
-      ResultSet rs = stmt.executeQuery(query);
-      if (rs.next()) {
-        domain = rs.getString(1);
-      }
-      rs.close();
-    } finally {
-      DataManager.releaseConnection(con);
-    }
-    return domain;
+    return getSchema().getDomain(relation);
   }
 
   public String getRange(String relation) throws SQLException {
-    DBConnection con = null;
-    String range = "NONE";
-    try {
-      con = DataManager.getConnection("range");
-      DBStatementInterface stmt = con.getStatement();
-      String query = "SELECT " + OBJECT + " FROM " + FACTS_TABLE + " WHERE " + PREDICATE + "='" + RANGE + "' AND " + SUBJECT + "='" + StringEscapeUtils.escapeSql(relation) + "'";
-      ResultSet rs = stmt.executeQuery(query);
-      if (rs.next()) {
-        range = rs.getString(1);
-      }
-      rs.close();
-    } finally {
-      DataManager.releaseConnection(con);
-    }
-    return range;
+    return getSchema().getRange(relation);
   }
 
   public boolean isEconomicRelation(String relation) {
-    return economicRelations.contains(relation);
+    return settings().getEconomicRelations().contains(relation);
   }
 
   public void storeFactEvaluation(String factId, String evaluationTarget, String username, String value) throws SQLException {
+    storeFactEvaluations(Collections.singletonMap(factId, value), evaluationTarget, username);
+  }
+
+  public void storeFactEvaluations(Map<String, String> values, String evaluationTarget, String username) throws SQLException {
+    storeFactEvaluations(Collections.singletonList(new EvaluationForm(new Date(), evaluationTarget, username, values)));
+  }
+
+  /**
+   * Stores the evaluations of submitted forms in one transaction. The
+   * previous evaluations of all facts are read with one query, the facts
+   * and their techniques with one join and the entries are inserted as one
+   * batch. Evaluations that were stored before are skipped, so storing a
+   * form again is harmless.
+   */
+  public void storeFactEvaluations(Collection<EvaluationForm> forms) throws SQLException {
+    Set<String> factIds = new HashSet<String>();
+    for (EvaluationForm form : forms) {
+      factIds.addAll(form.getResults().keySet());
+    }
+    if (factIds.isEmpty()) {
+      return;
+    }
+
+    List<EvaluationEntry> entries = new ArrayList<EvaluationEntry>();
+    // right/wrong judgments of the facts before this transaction
+    Map<String, AgreementAccumulator.Ratings> previousRatings = new HashMap<String, AgreementAccumulator.Ratings>();
+
     DBConnection con = null;
+    Connection physical = null;
+    boolean autoCommit = true;
+    boolean committed = false;
+    boolean locked = false;
     try {
-      if (!shouldStoreFact(factId, username)) {
-        return;
-      }
-      // get all info for evaluation entry
       con = DataManager.getConnection("storing");
-      DBStatementInterface stmt = con.getStatement();
+      physical = con.getPhysicalConnection();
+      autoCommit = physical.getAutoCommit();
+      physical.setAutoCommit(false);
 
-      String query = "SELECT f1." + ID + " AS " + ID + ", f1." + SUBJECT + " AS " + SUBJECT + ", f1." + PREDICATE + " AS " + PREDICATE + ", f1." + OBJECT + " AS " + OBJECT + ", f3." + OBJECT + " AS technique " + "FROM " + FACTS_TABLE + " f1, "
-          + FACTS_TABLE + " f2, " + FACTS_TABLE + " f3 " + "WHERE f1." + ID + "='" + StringEscapeUtils.escapeSql(factId) + "' " + "AND f2." + SUBJECT + "=f1." + ID + " " + "AND f3." + SUBJECT + "=f2." + ID + " " + "AND f3." + PREDICATE + "='" + USING + "'";
+      Map<String, Set<String>> evaluators = getEvaluators(con, factIds, previousRatings);
 
-      ResultSet rs = stmt.executeQuery(query);
+      // get all info for the evaluation entries
+      Map<String, Fact> facts = new HashMap<String, Fact>();
+      Map<String, String> techniques = new HashMap<String, String>();
+      PreparedStatement stmt = StatementRegistry.prepare(con, statements.factsWithTechnique);
+      stmt.setArray(1, StatementRegistry.textArray(con, factIds));
+      stmt.setString(2, USING);
 
-      EvaluationEntry e = null;
+      ResultSet rs = stmt.executeQuery();
 
-      if (rs.next()) {
-        Fact f = new Fact(rs.getString(SUBJECT), rs.getString(PREDICATE), rs.getString(OBJECT), rs.getString(ID));
-        e = new EvaluationEntry(new Date(), f, rs.getString("technique"), username, value, evaluationTarget);
+      while (rs.next()) {
+        String factId = rs.getString(ID);
+        // a fact with several techniques is stored with the first one
+        if (!facts.containsKey(factId)) {
+          facts.put(factId, new Fact(rs.getString(SUBJECT), rs.getString(PREDICATE), rs.getString(OBJECT), factId));
+          techniques.put(factId, rs.getString("technique"));
+        }
       }
 
       rs.close();
 
-      if (e == null) {
-        System.err.println("Could not write evaluation for fact '" + StringEscapeUtils.escapeSql(factId) + "'");
-        return;
+      for (EvaluationForm form : forms) {
+        for (Map.Entry<String, String> result : form.getResults().entrySet()) {
+          String factId = result.getKey();
+          Fact f = facts.get(factId);
+          if (f == null) {
+            logger.error("Could not write evaluation for fact '" + factId + "', it is not in the facts table");
+            continue;
+          }
+
+          Set<String> users = evaluators.get(factId);
+          if (users == null) {
+            users = new HashSet<String>();
+            evaluators.put(factId, users);
+          }
+          // each fact should be evaluated only once by each user, and
+          // not more than MAX_EVALUATIONS_PER_FACT times
+          if (users.contains(form.getUser()) || users.size() >= EvaluationManager.MAX_EVALUATIONS_PER_FACT) {
+            continue;
+          }
+
+          EvaluationEntry e = new EvaluationEntry(form.getTime(), f, techniques.get(factId), form.getUser(), result.getValue(), form.getTarget());
+          entries.add(e);
+          users.add(form.getUser());
+        }
       }
 
-      DBPreparedStatementInterface pStmt = con.prepareStatement("INSERT INTO evaluation (timepoint, factid, " + SUBJECT + ", " + PREDICATE + ", " + OBJECT + ", technique, eval, username, target) " + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+      if (!entries.isEmpty()) {
+        PreparedStatement pStmt = StatementRegistry.prepare(con, statements.insertEvaluation);
+
+        for (EvaluationEntry e : entries) {
+          pStmt.setTimestamp(1, new Timestamp(e.getTime().getTime()));
+          pStmt.setString(2, e.getFact().getId());
+          pStmt.setString(3, e.getFact().getArg1());
+          pStmt.setString(4, e.getFact().getRelation());
+          pStmt.setString(5, e.getFact().getArg2());
+          pStmt.setString(6, e.getTechnique());
+          pStmt.setString(7, e.getEvaluationResult());
+          pStmt.setString(8, e.getUser());
+          pStmt.setString(9, e.getTarget());
+          pStmt.addBatch();
+        }
 
-      pStmt.setTimestamp(1, new Timestamp(e.getTime().getTime()));
-      pStmt.setString(2, e.getFact().getId());
-      pStmt.setString(3, e.getFact().getArg1());
-      pStmt.setString(4, e.getFact().getRelation());
-      pStmt.setString(5, e.getFact().getArg2());
-      pStmt.setString(6, e.getTechnique());
-      pStmt.setString(7, e.getEvaluationResult());
-      pStmt.setString(8, e.getUser());
-      pStmt.setString(9, e.getTarget());
+        pStmt.executeBatch();
+      }
 
-      pStmt.execute();
+      // no reload between the commit and the updates of the counters below
+      judgmentLock.readLock().lock();
+      locked = true;
+      physical.commit();
+      committed = true;
     } finally {
+      if (physical != null) {
+        try {
+          if (!committed) {
+            physical.rollback();
+          }
+          physical.setAutoCommit(autoCommit);
+        } catch (SQLException e) {
+          logger.warn("Could not reset connection after storing evaluations: " + e);
+        }
+      }
       DataManager.releaseConnection(con);
+      if (locked && !committed) {
+        judgmentLock.readLock().unlock();
+      }
+    }
+
+    try {
+      updateCounters(entries, previousRatings);
+    } finally {
+      judgmentLock.readLock().unlock();
+    }
+
+    // all facts of the forms are evaluated now, their samplers are done with them
+    FactPrefetcher.judged(factIds);
+
+    if (!entries.isEmpty()) {
+      StandingsSnapshot.invalidate();
+    }
+  }
+
+  /**
+   * Applies newly stored evaluations to the in-memory counters
+   *
+   * @param previousRatings  The right/wrong judgments of the facts before the evaluations were stored
+   */
+  private void updateCounters(List<EvaluationEntry> entries, Map<String, AgreementAccumulator.Ratings> previousRatings) {
+    Map<String, AgreementAccumulator.Ratings> ratings = new HashMap<String, AgreementAccumulator.Ratings>();
+
+    for (EvaluationEntry e : entries) {
+      String factId = e.getFact().getId();
+      EvaluatedFacts.add(factId);
+
+      boolean included = AgreementAccumulator.isIncluded(settings(), e.getFact().getRelation(), e.getTechnique());
+
+      AgreementAccumulator.Ratings after = ratings.get(factId);
+      if (after == null) {
+        AgreementAccumulator.Ratings before = previousRatings.get(factId);
+        if (before == null) {
+          before = new AgreementAccumulator.Ratings();
+          previousRatings.put(factId, before);
+        }
+        before.included = included;
+        after = before.copy();
+        ratings.put(factId, after);
+      }
+      int judged = after.size();
+      after.add(e.getUser(), e.getEvaluationResult());
+
+      // the standings and the progress of the targets count the first
+      // right/wrong evaluation of a fact, as they are loaded by EvaluationStore
+      if (judged == 0 && after.size() == 1 && included) {
+        EvaluationStore.append(e);
+        TargetRegistry.recordJudgment(e);
+      }
+    }
+
+    for (Map.Entry<String, AgreementAccumulator.Ratings> fact : ratings.entrySet()) {
+      AgreementAccumulator.recordJudgments(previousRatings.get(fact.getKey()), fact.getValue());
     }
   }
 
-  private boolean shouldStoreFact(String factId, String username) throws SQLException {
+  /**
+   * Returns the ids of all evaluated facts
+   */
+  static Set<String> getEvaluatedFactIds() throws SQLException {
+    Set<String> factIds = new HashSet<String>();
     DBConnection con = null;
-    boolean shouldStore = true;
     try {
-      con = DataManager.getConnection("storing");
-      DBStatementInterface stmt = con.getStatement();
-      String query = "SELECT factid " + "FROM evaluation " + "WHERE factid='" + StringEscapeUtils.escapeSql(factId) + "' " + "AND username='" + StringEscapeUtils.escapeSql(username) + "'";
-      ResultSet rs = stmt.executeQuery(query);
-      if (rs.next()) {
-        // each fact should be evaluated only by one user, and each
-        // fact not more than once
-        shouldStore = false;
+      con = DataManager.getConnection("evaluatedFacts");
+      PreparedStatement stmt = StatementRegistry.prepare(con, statements.evaluatedFactIds);
+      ResultSet rs = stmt.executeQuery();
+      while (rs.next()) {
+        factIds.add(rs.getString(1));
       }
       rs.close();
-      query = "SELECT count(factid) " + "FROM evaluation " + "WHERE factid='" + StringEscapeUtils.escapeSql(factId) + "'";
-      rs = stmt.executeQuery(query);
-      if (rs.next()) {
-        int count = rs.getInt(1);
-        if (count >= 2) {
-          shouldStore = false;
-        }
+    } finally {
+      DataManager.releaseConnection(con);
+    }
+    return factIds;
+  }
+
+  /**
+   * Returns the ids of all evaluated facts in a sorted sampling table
+   * 
+   * @param table facts_rel_tech_sorted or facts_tech_rel_sorted
+   */
+  static BitSet getEvaluatedSortedIds(String table) throws SQLException {
+    BitSet ids = new BitSet();
+    DBConnection con = null;
+    try {
+      con = DataManager.getConnection("evaluatedFacts");
+      PreparedStatement stmt = StatementRegistry.prepare(con, table.equals(EvaluatedFacts.RELATION_TABLE) ? statements.evaluatedRelationSortedIds : statements.evaluatedTechniqueSortedIds);
+      ResultSet rs = stmt.executeQuery();
+      while (rs.next()) {
+        ids.set(rs.getInt(1));
       }
       rs.close();
     } finally {
       DataManager.releaseConnection(con);
     }
-    return shouldStore;
+    return ids;
+  }
+
+  /**
+   * Returns who evaluated facts so far, facts without evaluations are left out
+   * 
+   * @param ratings Receives the right/wrong judgments by fact id
+   * @return  Users by fact id
+   */
+  private Map<String, Set<String>> getEvaluators(DBConnection con, Collection<String> factIds, Map<String, AgreementAccumulator.Ratings> ratings) throws SQLException {
+    Map<String, Set<String>> evaluators = new HashMap<String, Set<String>>();
+    PreparedStatement stmt = StatementRegistry.prepare(con, statements.evaluators);
+    stmt.setArray(1, StatementRegistry.textArray(con, factIds));
+    ResultSet rs = stmt.executeQuery();
+    while (rs.next()) {
+      Set<String> users = evaluators.get(rs.getString(1));
+      if (users == null) {
+        users = new HashSet<String>();
+        evaluators.put(rs.getString(1), users);
+      }
+      users.add(rs.getString(2));
+
+      AgreementAccumulator.Ratings fact = ratings.get(rs.getString(1));
+      if (fact == null) {
+        fact = new AgreementAccumulator.Ratings();
+        ratings.put(rs.getString(1), fact);
+      }
+      fact.add(rs.getString(2), rs.getString(3));
+    }
+    rs.close();
+    return evaluators;
   }
 
-  public Iterable<Map<String, String>> getUserEvaluationNumbers() throws SQLException {
+  /**
+   * Returns the number of evaluations of every user, most active first, with
+   * the percentage of the user's counted evaluations that were judged correct
+   * ("Correct", null if none is counted), from the cube of EvaluationStore,
+   * and the percentage of other annotators that agreed with the user
+   * ("Agreement", null if the user shares no facts with others).
+   */
+  public Iterable<Map<String, Object>> getUserEvaluationNumbers() throws SQLException {
+    EvaluationStore.ensureLoaded();
+    AgreementAccumulator.ensureLoaded();
+
     DBConnection con = null;
-    List<Map<String, String>> userEvaluations = new LinkedList<Map<String, String>>();
+    List<Map<String, Object>> userEvaluations = new LinkedList<Map<String, Object>>();
     try {
       con = DataManager.getConnection("storing");
-      DBStatementInterface stmt = con.getStatement();
-      String query = "SELECT username, count(*) AS count FROM evaluation GROUP BY username ORDER BY count DESC";
-      ResultSet rs = stmt.executeQuery(query);
+      PreparedStatement stmt = StatementRegistry.prepare(con, statements.userEvaluationCounts);
+      ResultSet rs = stmt.executeQuery();
       while (rs.next()) {
         String username = rs.getString("username");
         String count = rs.getString("count");
-        if (username.equals("")) {
-          username = "ANONYMOUS";
-        }
-        Map<String, String> user = new HashMap<String, String>();
-        user.put("User", username);
+        int[] counted = EvaluationStore.countSlice(null, null, username);
+        Map<String, Object> user = new HashMap<String, Object>();
+        user.put("User", displayName(username));
         user.put("Count", count);
+        user.put("Correct", counted[0] == 0 ? null : 100.0 * counted[1] / counted[0]);
+        user.put("Agreement", AgreementAccumulator.getUserSharedFacts(username) == 0 ? null : AgreementAccumulator.getUserAgreement(username));
         userEvaluations.add(user);
       }
       rs.close();
@@ -846,37 +1238,64 @@ public class YagoDatabase {
     return userEvaluations;
   }
 
+  /**
+   * Returns the pairs of users that evaluated facts in common, with the
+   * number of these facts ("Facts") and the percentage they agree on
+   * ("Agreement"), the pairs with most common facts first
+   */
+  public List<Map<String, Object>> getPairAgreements() throws SQLException {
+    AgreementAccumulator.ensureLoaded();
+
+    List<Map<String, Object>> pairAgreements = new ArrayList<Map<String, Object>>();
+    for (String[] users : AgreementAccumulator.getUserPairs()) {
+      Map<String, Object> pair = new HashMap<String, Object>();
+      pair.put("Users", displayName(users[0]) + " / " + displayName(users[1]));
+      pair.put("Facts", AgreementAccumulator.getPairSharedFacts(users[0], users[1]));
+      pair.put("Agreement", AgreementAccumulator.getPairAgreement(users[0], users[1]));
+      pairAgreements.add(pair);
+    }
+
+    Collections.sort(pairAgreements, new Comparator<Map<String, Object>>() {
+
+      @Override
+      public int compare(Map<String, Object> p1, Map<String, Object> p2) {
+        return ((Long) p2.get("Facts")).compareTo((Long) p1.get("Facts"));
+      }
+    });
+    return pairAgreements;
+  }
+
+  private static String displayName(String username) {
+    return username.equals("") ? "ANONYMOUS" : username;
+  }
+
   public void normalizeYagoEntities() throws SQLException {
     DBConnection con = null;
     try {
       con = DataManager.getConnection("normalizing");
-      DBStatementInterface stmt = con.getStatement();
-      String query = "SELECT factid," + SUBJECT + "," + PREDICATE + "," + OBJECT + " FROM evaluation";
-      ResultSet rs = stmt.executeQuery(query);
-      List<String[]> entries = new LinkedList<String[]>();
-      while (rs.next()) {
-        String factid = rs.getString("factid");
-        String arg1 = rs.getString(SUBJECT);
-        String arg2 = rs.getString(OBJECT);
-        entries.add(new String[] { factid, arg1, arg2 });
-      }
-      rs.close();
-      int changeCount = 0;
-      for (String[] entry : entries) {
-        String factid = entry[0];
-        String arg1 = entry[1];
-        String arg2 = entry[2];
-        String normArg1 = normalizeIfNecessary(arg1);
-        String normArg2 = normalizeIfNecessary(arg2);
-        if (!normArg1.equals(arg1) || !normArg2.equals(arg2)) {
-          query = "UPDATE evaluation SET " + SUBJECT + "=E'" + getPostgresEscapedString(normArg1) + "', " + OBJECT + "='" + getPostgresEscapedString(normArg2) + "' WHERE factid='" + factid + "'";
-          //        logger.info(query);
-          changeCount++;
-          logger.info("Updating '" + factid + "': '" + arg1 + "' -> '" + normArg1 + "', '" + arg2 + "' -> '" + normArg2 + "'");
-          stmt.execute(query);
+      final PreparedStatement update = StatementRegistry.prepare(con, statements.normalizeEvaluation);
+      final int[] changeCount = { 0 };
+      // the updates are committed together once all rows were read
+      stream(con, StatementRegistry.prepare(con, statements.evaluatedFacts), new RowHandler() {
+
+        @Override
+        public void row(ResultSet rs) throws SQLException {
+          String factid = rs.getString("factid");
+          String arg1 = rs.getString(SUBJECT);
+          String arg2 = rs.getString(OBJECT);
+          String normArg1 = normalizeIfNecessary(arg1);
+          String normArg2 = normalizeIfNecessary(arg2);
+          if (!normArg1.equals(arg1) || !normArg2.equals(arg2)) {
+            changeCount[0]++;
+            logger.info("Updating '" + factid + "': '" + arg1 + "' -> '" + normArg1 + "', '" + arg2 + "' -> '" + normArg2 + "'");
+            update.setString(1, normArg1);
+            update.setString(2, normArg2);
+            update.setString(3, factid);
+            update.executeUpdate();
+          }
         }
-      }
-      logger.info("Changed " + changeCount + " entries");
+      });
+      logger.info("Changed " + changeCount[0] + " entries");
     } finally {
       DataManager.releaseConnection(con);
     }